@@ -15,10 +15,19 @@
  */
 package org.gradle.ideaplugin.ui;
 
+import com.intellij.openapi.project.Project;
 import com.intellij.openapi.wm.ToolWindow;
+import com.intellij.openapi.wm.WindowManager;
 
 import javax.swing.Icon;
+import javax.swing.JFrame;
 import javax.swing.Timer;
+import java.awt.Frame;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.WindowEvent;
+import java.awt.event.WindowStateListener;
+import java.util.ArrayList;
 import java.util.List;
 import java.awt.event.ActionListener;
 import java.awt.event.ActionEvent;
@@ -28,57 +37,84 @@ import java.awt.event.ActionEvent;
  You give it a default icon and list of icons to display during animation.
  Then call start and stop when you want the animation to do so.
 
+ All the animated icons share a single Swing timer that only runs while at least
+ one of them is animating where it can be seen. An icon doesn't animate while its
+ project's frame is minimized or hidden (nobody can see it). We listen to those
+ frames so the timer stops when the last visible one goes away and starts again
+ when one comes back. We only set the tool window's icon when it actually changes.
+
  @author mhunsicker
  */
 public class AnimatedToolIcon
 {
+   private static Timer sharedAnimationTimer;   //only used in the EDT
+   private static List<AnimatedToolIcon> animatingIcons = new ArrayList<AnimatedToolIcon>();   //only used in the EDT
+   private static FrameVisibilityListener frameVisibilityListener = new FrameVisibilityListener();
+
    private ToolWindow toolWindow;
+   private Project project;   //whose frame we check for visibility. Can be null.
 
    private Icon defaultIcon;
    private List<Icon> icons;
 
+   private int delay;
    private int currentImageIndex;
-
-   private Timer busyAnimationTimer;
+   private long lastFrameTime;
+   private Icon currentIcon;   //the icon we last set on the tool window
+   private JFrame listenedToFrame;   //the frame we're listening to while we animate (if any)
 
    public AnimatedToolIcon( ToolWindow toolWindow, int delay, Icon defaultIcon, List<Icon> icons )
+   {
+      this( toolWindow, null, delay, defaultIcon, icons );
+   }
+
+   /**
+    @param toolWindow  the tool window whose icon we animate
+    @param project     the project whose frame holds the tool window. We don't animate
+                       while it isn't showing. If this is null, we always animate.
+    @param delay       the number of milliseconds between each animation frame
+    @param defaultIcon the icon shown when we're not animating
+    @param icons       the frames of the animation
+    */
+   public AnimatedToolIcon( ToolWindow toolWindow, Project project, int delay, Icon defaultIcon, List<Icon> icons )
    {
       this.toolWindow = toolWindow;
+      this.project = project;
+      this.delay = delay;
       this.defaultIcon = defaultIcon;
       if( icons != null && !icons.isEmpty() )
          this.icons = icons;
 
-      busyAnimationTimer = new Timer( delay, new ActionListener()
-      {
-         public void actionPerformed( ActionEvent e )
-         {
-            updateAnimatedIcon();
-         }
-      } );
-
-      toolWindow.setIcon( defaultIcon );
+      setIcon( defaultIcon );
    }
 
-   //starts the animation. You can call this repeatedly after this starts and it has no ill effects. 
+   //starts the animation. You can call this repeatedly after this starts and it has no ill effects.
+   //You must always call this from within the EDT.
    public void start()
    {
-      if( !busyAnimationTimer.isRunning() && icons != null )
-      {
-         busyAnimationTimer.start();
-         currentImageIndex = 0;
-      }
+      if( icons == null || animatingIcons.contains( this ) )
+         return;
+
+      currentImageIndex = 0;
+      lastFrameTime = 0;   //so the first frame is shown on the next tick
+      animatingIcons.add( this );
+      listenToFrame();
+      updateSharedTimer();
    }
 
    //stops the animation and sets the default icon
    //You must always call this from within the EDT.
    public void stop()
    {
-      if( busyAnimationTimer.isRunning() )
-          busyAnimationTimer.stop();
+      if( animatingIcons.remove( this ) )
+      {
+         stopListeningToFrame();
+         updateSharedTimer();
+      }
 
       try
       {
-         toolWindow.setIcon( defaultIcon );
+         setIcon( defaultIcon );
       }
       catch( Exception e )
       {
@@ -97,14 +133,152 @@ public class AnimatedToolIcon
       }
    }
 
-   //this must always be called from within the EDT. That's why its only caled from the Swing timer.
-   private void updateAnimatedIcon()
+   /**
+    This makes the shared timer match the icons that are animating. It ticks as often
+    as the fastest visible one needs (each icon only advances when its own delay has
+    passed) and it's stopped when none of them are visible. Call this whenever an
+    icon starts or stops, or a frame is shown or hidden.
+    */
+   private static void updateSharedTimer()
    {
-      Icon icon = icons.get( currentImageIndex );
-      toolWindow.setIcon( icon );
+      int delay = Integer.MAX_VALUE;
+      for( int index = 0; index < animatingIcons.size(); index++ )
+      {
+         AnimatedToolIcon icon = animatingIcons.get( index );
+         if( icon.delay < delay && icon.isFrameShowing() )
+            delay = icon.delay;
+      }
+
+      if( delay == Integer.MAX_VALUE )
+      {
+         if( sharedAnimationTimer != null )
+            sharedAnimationTimer.stop();
+         return;
+      }
+
+      if( sharedAnimationTimer == null )
+      {
+         sharedAnimationTimer = new Timer( delay, new ActionListener()
+         {
+            public void actionPerformed( ActionEvent e )
+            {
+               updateAnimatingIcons();
+            }
+         } );
+      }
+
+      if( sharedAnimationTimer.getDelay() != delay )
+         sharedAnimationTimer.setDelay( delay );
+
+      if( !sharedAnimationTimer.isRunning() )
+         sharedAnimationTimer.start();
+   }
+
+   //this is always called from within the EDT. That's why its only called from the Swing timer.
+   private static void updateAnimatingIcons()
+   {
+      long now = System.currentTimeMillis();
+
+      //copy them in case one is stopped while we're updating (setting an icon can do just about anything).
+      AnimatedToolIcon[] icons = animatingIcons.toArray( new AnimatedToolIcon[ animatingIcons.size() ] );
+      for( int index = 0; index < icons.length; index++ )
+      {
+         AnimatedToolIcon icon = icons[ index ];
+         if( icon.project != null && icon.project.isDisposed() )
+         {
+            animatingIcons.remove( icon );   //its project was closed while it was animating. Nobody will ever stop it.
+            icon.stopListeningToFrame();
+         }
+         else
+            icon.updateAnimatedIcon( now );
+      }
+
+      updateSharedTimer();
+   }
+
+   //this must always be called from within the EDT.
+   private void updateAnimatedIcon( long now )
+   {
+      if( now - lastFrameTime < delay || !isFrameShowing() )
+         return;
+
+      lastFrameTime = now;
+      setIcon( icons.get( currentImageIndex ) );
 
       currentImageIndex++;
       if( currentImageIndex >= icons.size() )
          currentImageIndex = 0;
    }
+
+   //returns false if our project's frame is minimized or hidden.
+   private boolean isFrameShowing()
+   {
+      if( project == null )
+         return true;
+
+      JFrame frame = WindowManager.getInstance().getFrame( project );
+      if( frame == null )
+         return true;   //we don't know. Just animate.
+
+      return frame.isShowing() && ( frame.getExtendedState() & Frame.ICONIFIED ) == 0;
+   }
+
+   //this listens to our project's frame so we know when it's minimized or hidden (or comes back).
+   private void listenToFrame()
+   {
+      if( project == null )
+         return;
+
+      listenedToFrame = WindowManager.getInstance().getFrame( project );
+      if( listenedToFrame != null )
+      {
+         listenedToFrame.addComponentListener( frameVisibilityListener );
+         listenedToFrame.addWindowStateListener( frameVisibilityListener );
+      }
+   }
+
+   private void stopListeningToFrame()
+   {
+      if( listenedToFrame != null )
+      {
+         listenedToFrame.removeComponentListener( frameVisibilityListener );
+         listenedToFrame.removeWindowStateListener( frameVisibilityListener );
+         listenedToFrame = null;
+      }
+   }
+
+   //this sets the icon on the tool window, unless it's already showing it.
+   private void setIcon( Icon icon )
+   {
+      if( icon == currentIcon )
+         return;
+
+      toolWindow.setIcon( icon );
+      currentIcon = icon;   //only after it succeeds. See stop for why it might not.
+   }
+
+   //
+         /**
+            This restarts or stops the shared timer when a frame with an animating icon
+            is shown, hidden, minimized or restored. It's shared by all the frames.
+         */
+         private static class FrameVisibilityListener extends ComponentAdapter implements WindowStateListener
+         {
+            @Override
+            public void componentShown( ComponentEvent e )
+            {
+               updateSharedTimer();
+            }
+
+            @Override
+            public void componentHidden( ComponentEvent e )
+            {
+               updateSharedTimer();
+            }
+
+            public void windowStateChanged( WindowEvent e )
+            {
+               updateSharedTimer();
+            }
+         }
 }
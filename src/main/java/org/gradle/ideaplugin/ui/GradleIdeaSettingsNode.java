@@ -16,35 +16,207 @@
 package org.gradle.ideaplugin.ui;
 
 import org.gradle.openapi.external.ui.SettingsNodeVersion1;
+import org.jdom.Element;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
    This is our Idea-side implementation of a settings node. We'll store them in
    a hashmap and then write them out to the Idea project file using its
    serialization mechanism. The settings are actually a hierarchy of nodes
    similar to xml, but without attributes.
+
+   The children are kept in the order they were added (that's the order they're
+   serialized in), but we also index them by name since the gradle UI looks them
+   up by name constantly and some nodes (favorites, history) have hundreds of them.
+
+   Each node also tracks whether it has changed since it was last serialized and
+   holds onto the element it was serialized to. GradleUISettings2 reuses those
+   elements for unchanged nodes rather than rebuilding the whole tree on every save.
+
+   Nodes that are loaded from Idea don't read in their children until someone
+   asks for them. Large subtrees that the gradle UI doesn't touch (such as a long
+   command history) are never turned into nodes, and since they haven't changed,
+   they're written back out using the element they were read from.
+
+   The gradle UI changes settings from its own threads while Idea serializes them
+   from another. Reading never locks: the children are a read-only snapshot (see
+   ChildList) that is replaced whenever they change, so a reader always sees one
+   complete version of them. Changes to the children are synchronized on the node.
+   Gradle saves lists (favorites, history) by removing all the children and adding
+   them back one at a time, so adding a child doesn't copy the existing ones.
+   Rather than a dirty flag, each node counts its modifications. The serializer
+   notes the count before it writes a node and the node is only clean if nothing
+   changed while it was being written.
    @author mhunsicker
 */
 public class GradleIdeaSettingsNode implements SettingsNodeVersion1
 {
-   public List<SettingsNodeVersion1> children = new ArrayList<SettingsNodeVersion1>();
-   public String name;
-   public String value;
-   public GradleIdeaSettingsNode parent;
+   private static final Object NO_NAME = new Object();   //index key for children without a name (ConcurrentHashMap doesn't allow null keys)
+
+   private volatile ChildList children = ChildList.EMPTY;   //never modified, only replaced.
+   private Map<Object, ChildList> childrenByName = new ConcurrentHashMap<Object, ChildList>();  //multiple children can have the same name. The lists are never modified, only replaced.
+   public volatile String name;
+   public volatile String value;
+   public volatile GradleIdeaSettingsNode parent;
+   private final AtomicInteger modificationCount = new AtomicInteger( 1 );
+   private volatile int serializedModificationCount;  //the modification count when we were last serialized. New nodes have never been serialized.
+   private volatile Element cachedElement;
+   private volatile Element unreadElement;      //if this isn't null, our children haven't been read in from it yet.
+   private volatile ParsedValue parsedValue;    //our value parsed as an int, long or boolean. Only valid if it was parsed from our current value.
+   private final AtomicInteger structureVersion;  //shared by the whole tree. Bumped whenever a node is removed or renamed.
+   private volatile PathCache pathCache;
+
+   private static final int MAXIMUM_CACHED_PATHS = 256;
+   private static final char PATH_SEPARATOR = '\u0000';
+
+   //
+         /**
+            The nodes found by getNodeAtPath, for a single version of the tree's structure.
+         */
+         private static class PathCache
+         {
+            private final int structureVersion;
+            private final Map<String, SettingsNodeVersion1> nodesByPath = new ConcurrentHashMap<String, SettingsNodeVersion1>();
+
+            private PathCache( int structureVersion )
+            {
+               this.structureVersion = structureVersion;
+            }
+         }
+
+   //
+         /**
+            A read-only snapshot of some children. Appending creates a new snapshot
+            that shares this one's array (growing it like an ArrayList), so adding
+            children one at a time doesn't copy them all each time. That's safe
+            because a snapshot never looks past its own size and only the newest
+            snapshot is ever appended to (while holding the node's lock). Removing
+            copies, but that's rare.
+         */
+         private static final class ChildList extends AbstractList<SettingsNodeVersion1> implements RandomAccess
+         {
+            private static final ChildList EMPTY = new ChildList( new SettingsNodeVersion1[ 0 ], 0 );
+
+            private final SettingsNodeVersion1[] nodes;  //shared with later snapshots. Slots past our size belong to them.
+            private final int size;
+
+            private ChildList( SettingsNodeVersion1[] nodes, int size )
+            {
+               this.nodes = nodes;
+               this.size = size;
+            }
+
+            private static ChildList of( Collection<? extends SettingsNodeVersion1> nodes )
+            {
+               if( nodes.isEmpty() )
+                  return EMPTY;
+
+               return new ChildList( nodes.toArray( new SettingsNodeVersion1[ nodes.size() ] ), nodes.size() );
+            }
+
+            @Override
+            public SettingsNodeVersion1 get( int index )
+            {
+               if( index >= size )
+                  throw new IndexOutOfBoundsException( "Index: " + index + ", Size: " + size );
+
+               return nodes[ index ];
+            }
+
+            @Override
+            public int size()
+            {
+               return size;
+            }
+
+            //only call this on the newest snapshot while synchronized on the node that owns it.
+            private ChildList append( SettingsNodeVersion1 node )
+            {
+               SettingsNodeVersion1[] nodes = this.nodes;
+               if( size == nodes.length )
+                  nodes = Arrays.copyOf( nodes, Math.max( 4, size * 2 ) );
+
+               nodes[ size ] = node;
+               return new ChildList( nodes, size + 1 );
+            }
+
+            //returns this if the node isn't in it.
+            private ChildList without( SettingsNodeVersion1 node )
+            {
+               int index = indexOf( node );
+               if( index == -1 )
+                  return this;
+
+               if( size == 1 )
+                  return EMPTY;
+
+               SettingsNodeVersion1[] newNodes = new SettingsNodeVersion1[ size - 1 ];
+               System.arraycopy( nodes, 0, newNodes, 0, index );
+               System.arraycopy( nodes, index + 1, newNodes, index, size - index - 1 );
+               return new ChildList( newNodes, newNodes.length );
+            }
+         }
+
+   //
+         /**
+            Implement this to walk a node's children with visitChildren.
+         */
+         public interface Visitor
+         {
+            /**
+               @param  node the child being visited
+               @return true to keep going, false to stop visiting.
+            */
+            public boolean visit( GradleIdeaSettingsNode node );
+         }
+
+   //
+         /**
+            Our value parsed as a particular type. The gradle UI asks for the same
+            numbers and flags over and over when it restores itself, so we cache the
+            last one parsed. This holds the string it was parsed from so a cache
+            filled in by one thread while another changes our value is never used.
+         */
+         private static class ParsedValue
+         {
+            private final String source;
+            private final Class<?> type;
+            private final Object value;   //null if the source isn't a valid value of the type
+
+            private ParsedValue( String source, Class<?> type, Object value )
+            {
+               this.source = source;
+               this.type = type;
+               this.value = value;
+            }
+         }
 
    public GradleIdeaSettingsNode( String name, GradleIdeaSettingsNode parent )
    {
       this.name = name;
       this.parent = parent;
+      this.structureVersion = parent == null ? new AtomicInteger() : parent.structureVersion;
    }
 
    public void setName( String name )
    {
+      String oldName = this.name;
       this.name = name;
+
+      GradleIdeaSettingsNode parent = this.parent;
+      if( parent != null )
+         parent.childRenamed( this, oldName );
+
+      markModified();
    }
 
    public String getName()
@@ -54,7 +226,23 @@ public class GradleIdeaSettingsNode implements SettingsNodeVersion1
 
    public void setValue( String value )
    {
+      if( setValueWithoutNotifyingAncestors( value ) && parent != null )
+         parent.markModified();
+   }
+
+   /*
+   Returns true if the value actually changed. Only this node is marked as modified. The
+   settings reader uses this directly, because reading a node in doesn't change its ancestors.
+   */
+   /*package*/ boolean setValueWithoutNotifyingAncestors( String value )
+   {
+      if( areEqual( this.value, value ) )
+         return false;  //the gradle UI frequently re-saves values that haven't changed. That shouldn't make us dirty.
+
       this.value = value;
+      this.parsedValue = null;
+      modificationCount.incrementAndGet();
+      return true;
    }
 
    public String getValue()
@@ -64,47 +252,126 @@ public class GradleIdeaSettingsNode implements SettingsNodeVersion1
 
    public List<SettingsNodeVersion1> getChildNodes()
    {
-      return Collections.unmodifiableList( children );
+      readChildrenIfNecessary();
+      return children;
    }
 
+   //The lists in the index are never modified, so we can hand them out as is.
    public List<SettingsNodeVersion1> getChildNodes( String name )
    {
-      List<SettingsNodeVersion1> matchingChildren = new ArrayList<SettingsNodeVersion1>( );
+      readChildrenIfNecessary();
+      ChildList matchingChildren = childrenByName.get( indexKey( name ) );
+      if( matchingChildren == null )
+         return Collections.emptyList();
 
-      Iterator<SettingsNodeVersion1> iterator = children.iterator();
+      return matchingChildren;
+   }
 
-      while( iterator.hasNext() )
-      {
-         SettingsNodeVersion1 settingsNodeVersion1 = iterator.next();
-         if( name.equals( settingsNodeVersion1.getName() ) )
-            matchingChildren.add( settingsNodeVersion1 );
-      }
+   /**
+      This visits our children in order. Unlike iterating over getChildNodes, this
+      doesn't allocate anything, which matters when walking the whole tree (such
+      as on every save). The children visited are a single consistent version of
+      them, even if they're changed (by the visitor or another thread) meanwhile.
 
-      return matchingChildren;
+      @param  visitor what's called for each child
+      @return true if all the children were visited, false if the visitor stopped.
+   */
+   public boolean visitChildren( Visitor visitor )
+   {
+      readChildrenIfNecessary();
+      return visit( children, visitor );
    }
 
-   public SettingsNodeVersion1 getChildNode( String name )
+   /**
+      Same as visitChildren, but only visits the children with the specified name.
+   */
+   public boolean visitChildren( String name, Visitor visitor )
    {
-      Iterator<SettingsNodeVersion1> iterator = children.iterator();
+      readChildrenIfNecessary();
+      ChildList matchingChildren = childrenByName.get( indexKey( name ) );
+      if( matchingChildren == null )
+         return true;
 
-      while( iterator.hasNext() )
+      return visit( matchingChildren, visitor );
+   }
+
+   private static boolean visit( ChildList nodes, Visitor visitor )
+   {
+      int size = nodes.size();
+      for( int index = 0; index < size; index++ )  //indexed rather than an iterator so we don't allocate one.
       {
-         SettingsNodeVersion1 settingsNodeVersion1 = iterator.next();
-         if( name.equals( settingsNodeVersion1.getName() ) )
-            return settingsNodeVersion1;
+         if( !visitor.visit( (GradleIdeaSettingsNode) nodes.get( index ) ) )
+            return false;
       }
 
-      return null;
+      return true;
+   }
+
+   public SettingsNodeVersion1 getChildNode( String name )
+   {
+      readChildrenIfNecessary();
+      ChildList matchingChildren = childrenByName.get( indexKey( name ) );
+      if( matchingChildren == null )
+         return null;
+
+      return matchingChildren.get( 0 );
    }
 
-   public SettingsNodeVersion1 addChild( String name )
+   public synchronized SettingsNodeVersion1 addChild( String name )
    {
+      readChildrenIfNecessary();
       GradleIdeaSettingsNode node = new GradleIdeaSettingsNode( name, this );
-      children.add( node );
+
+      children = children.append( node );
+      addToIndex( node );
+      markModified();
       return node;
    }
 
-   public SettingsNodeVersion1 addChildIfNotPresent( String name )
+   private static Object indexKey( String name )
+   {
+      return name == null ? NO_NAME : name;
+   }
+
+   //only call this while synchronized on this node.
+   private void addToIndex( SettingsNodeVersion1 node )
+   {
+      Object key = indexKey( node.getName() );
+      ChildList matchingChildren = childrenByName.get( key );
+      if( matchingChildren == null )
+         matchingChildren = ChildList.EMPTY;
+
+      childrenByName.put( key, matchingChildren.append( node ) );
+   }
+
+   //only call this while synchronized on this node.
+   private void removeFromIndex( SettingsNodeVersion1 node, String name )
+   {
+      Object key = indexKey( name );
+      ChildList matchingChildren = childrenByName.get( key );
+      if( matchingChildren == null )
+         return;
+
+      ChildList newMatchingChildren = matchingChildren.without( node );
+      if( newMatchingChildren == ChildList.EMPTY )
+         childrenByName.remove( key );
+      else
+         childrenByName.put( key, newMatchingChildren );
+   }
+
+   //Called when a child's name changes so we can re-index it. Its position in the children is unchanged.
+   private synchronized void childRenamed( GradleIdeaSettingsNode node, String oldName )
+   {
+      ChildList matchingChildren = childrenByName.get( indexKey( oldName ) );
+      if( matchingChildren == null || !matchingChildren.contains( node ) )
+         return;  //it isn't one of our children anymore (it was removed while it was being renamed).
+
+      removeFromIndex( node, oldName );
+      addToIndex( node );
+      structureChanged();
+   }
+
+   public synchronized SettingsNodeVersion1 addChildIfNotPresent( String name )
    {
       SettingsNodeVersion1 child = getChildNode( name );
       if( child == null )
@@ -114,68 +381,137 @@ public class GradleIdeaSettingsNode implements SettingsNodeVersion1
    }
 
 
+   /**
+      This finds a node by its path of names (relative to this node). The gradle UI
+      looks up the same deep paths over and over, so we cache what we find, keyed
+      by the joined path. The cache is thrown away whenever a node anywhere in the
+      tree is removed or renamed (adding nodes can't change what a path finds).
+
+      @param  pathPortions the names of each node along the path
+      @return the node or null if there isn't one at that path
+   */
    public SettingsNodeVersion1 getNodeAtPath( String ... pathPortions )
    {
       if( pathPortions == null || pathPortions.length == 0 )
          return null;
 
-      String firstPathPortion = pathPortions[ 0 ];
+      if( pathPortions.length == 1 )
+         return getChildNode( pathPortions[ 0 ] );   //not worth caching
 
-      SettingsNodeVersion1 currentNode = getChildNode( firstPathPortion );
+      PathCache pathCache = getPathCache();
+      String path = joinPath( pathPortions );
+      SettingsNodeVersion1 node = pathCache.nodesByPath.get( path );
+      if( node != null )
+         return node;
 
-      int index = 1;//Skip the first one. we've already used that one.
-      while( index < pathPortions.length && currentNode != null )
+      node = this;
+      int index = 0;
+      while( index < pathPortions.length && node != null )
       {
-         String pathPortion = pathPortions[ index ];
-         currentNode = currentNode.getChildNode( pathPortion );
+         node = node.getChildNode( pathPortions[ index ] );
          index++;
       }
 
-      return currentNode;
+      if( node != null )
+      {
+         if( pathCache.nodesByPath.size() >= MAXIMUM_CACHED_PATHS )
+            pathCache.nodesByPath.clear();   //someone is looking up lots of different paths. Don't grow forever.
+
+         pathCache.nodesByPath.put( path, node );
+      }
+
+      return node;
    }
 
-   private SettingsNodeVersion1 getNodeAtPathCreateIfNotFound( String ... pathPortions )
+   /**
+      This returns our path cache, starting a new one if the tree's structure has
+      changed since the current one was started. The version is fetched before
+      the caller looks anything up, so a lookup that overlaps a change only ever
+      goes into a cache that's already out of date.
+   */
+   private PathCache getPathCache()
    {
-      if( pathPortions == null || pathPortions.length == 0 )
-         return null;
+      int version = structureVersion.get();
+      PathCache pathCache = this.pathCache;
+      if( pathCache == null || pathCache.structureVersion != version )
+      {
+         pathCache = new PathCache( version );
+         this.pathCache = pathCache;
+      }
 
-      String firstPathPortion = pathPortions[ 0 ];
+      return pathCache;
+   }
 
-      SettingsNodeVersion1 currentNode = getChildNode( firstPathPortion );
-      if( currentNode == null )
-         currentNode = addChild( firstPathPortion );
+   private static String joinPath( String ... pathPortions )
+   {
+      StringBuilder builder = new StringBuilder();
+      for( String pathPortion : pathPortions )
+         builder.append( pathPortion ).append( PATH_SEPARATOR );   //a character that can't be in XML, so it can't be in a name we've stored.
 
-      int index = 1;
-      while( index < pathPortions.length )
-      {
-         String pathPortion = pathPortions[ index ];
-         currentNode = currentNode.getChildNode( pathPortion );
-         if( currentNode == null )
-            currentNode = addChild( firstPathPortion );
+      return builder.toString();
+   }
 
-         index++;
-      }
+   //Call this when a node is removed or renamed. It invalidates every path cache in the tree.
+   private void structureChanged()
+   {
+      structureVersion.incrementAndGet();
+   }
 
-      return currentNode;
+   /**
+      This finds a node by its path of names, adding any nodes along the path
+      that don't exist.
+
+      @param  pathPortions the names of each node along the path
+      @return the node at the path or null if no path was given
+   */
+   public SettingsNodeVersion1 getNodeAtPathCreateIfNotFound( String ... pathPortions )
+   {
+      SettingsNodeVersion1 node = getNodeAtPath( pathPortions );
+      if( node != null || pathPortions == null || pathPortions.length == 0 )
+         return node;
+
+      node = this;
+      for( String pathPortion : pathPortions )
+         node = node.addChildIfNotPresent( pathPortion );
+
+      return node;
    }
 
-   public void removeAllChildren()
+   public synchronized void removeAllChildren()
    {
-      children.clear();
+      ChildList removedChildren = children;
+      for( int index = 0; index < removedChildren.size(); index++ )
+         ((GradleIdeaSettingsNode) removedChildren.get( index )).parent = null;   //so they stop telling us about their changes (such as being renamed).
+
+      children = ChildList.EMPTY;
+      childrenByName.clear();
+      structureChanged();
+      unreadElement = null;   //no need to read them if we're just throwing them away.
+      markModified();
    }
 
    public void removeFromParent()
    {
+      GradleIdeaSettingsNode parent = this.parent;
       if( parent != null )
       {
          if( parent.removeChild( this ) )
-            parent = null;
+            this.parent = null;
       }
    }
 
-   private boolean removeChild( GradleIdeaSettingsNode node )
+   private synchronized boolean removeChild( GradleIdeaSettingsNode node )
    {
-      return children.remove( node );
+      readChildrenIfNecessary();
+      ChildList newChildren = children.without( node );
+      if( newChildren == children )
+         return false;
+
+      children = newChildren;
+      removeFromIndex( node, node.getName() );
+      structureChanged();
+      markModified();
+      return true;
    }
 
    public void setValueOfChild( String name, String value )
@@ -195,22 +531,11 @@ public class GradleIdeaSettingsNode implements SettingsNodeVersion1
 
    public int getValueOfChildAsInt( String name, int defaultValue )
    {
-      SettingsNodeVersion1 settingsNode = getChildNode( name );
-      if( settingsNode != null )
-      {
-         String value = settingsNode.getValue();
+      Object value = getParsedValueOfChild( name, Integer.class );
+      if( value == null )
+         return defaultValue;
 
-         try
-         {
-            if( value != null )
-               return Integer.parseInt( value );
-         }
-         catch( NumberFormatException e )
-         {
-            //we couldn't parse it. Just return the default.
-         }
-      }
-      return defaultValue;
+      return (Integer) value;
    }
 
    public void setValueOfChildAsInt( String name, int value )
@@ -220,22 +545,11 @@ public class GradleIdeaSettingsNode implements SettingsNodeVersion1
 
    public long getValueOfChildAsLong( String name, long defaultValue )
    {
-      SettingsNodeVersion1 settingsNode = getChildNode( name );
-      if( settingsNode != null )
-      {
-         String value = settingsNode.getValue();
+      Object value = getParsedValueOfChild( name, Long.class );
+      if( value == null )
+         return defaultValue;
 
-         try
-         {
-            if( value != null )
-               return Long.parseLong( value );
-         }
-         catch( NumberFormatException e )
-         {
-            //we couldn't parse it. Just return the default.
-         }
-      }
-      return defaultValue;
+      return (Long) value;
    }
 
    public void setValueOfChildAsLong( String name, long value )
@@ -245,42 +559,187 @@ public class GradleIdeaSettingsNode implements SettingsNodeVersion1
 
    public boolean getValueOfChildAsBoolean( String name, boolean defaultValue )
    {
-      SettingsNodeVersion1 settingsNode = getChildNode( name );
-      if( settingsNode != null )
-      {
-         String value = settingsNode.getValue();
+      Object value = getParsedValueOfChild( name, Boolean.class );
+      if( value == null )
+         return defaultValue;
 
-	      //I'm not calling 'Boolean.parseBoolean( value )' because it will return false if the value isn't true/false
-         //and we want it to return whatever the default is if its not a boolean. This is how the Int and Long functions
-         //behave.
-         if( value != null )
-         {
-            if( "true".equalsIgnoreCase( value ) )
-               return true;
+      return (Boolean) value;
+   }
 
-            if( "false".equalsIgnoreCase( value ) )
-               return false;
-         }
+   public void setValueOfChildAsBoolean( String name, boolean value )
+   {
+      setValueOfChild( name, Boolean.toString( value ) );
+   }
+
+   /**
+      @return the value of the named child parsed as the specified type or null if
+              there's no such child or its value isn't a valid value of the type.
+   */
+   private Object getParsedValueOfChild( String name, Class<?> type )
+   {
+      GradleIdeaSettingsNode settingsNode = (GradleIdeaSettingsNode) getChildNode( name );
+      if( settingsNode == null )
+         return null;
+
+      return settingsNode.getParsedValue( type );
+   }
+
+   private Object getParsedValue( Class<?> type )
+   {
+      String value = this.value;
+      ParsedValue parsedValue = this.parsedValue;
+      if( parsedValue == null || parsedValue.source != value || parsedValue.type != type )
+      {
+         parsedValue = new ParsedValue( value, type, parse( value, type ) );
+         this.parsedValue = parsedValue;
       }
 
-      return defaultValue;
+      return parsedValue.value;
    }
 
-   public void setValueOfChildAsBoolean( String name, boolean value )
+   private static Object parse( String value, Class<?> type )
    {
-      setValueOfChild( name, Boolean.toString( value ) );
+      if( value == null )
+         return null;
+
+      try
+      {
+         if( type == Integer.class )
+            return Integer.valueOf( value );
+
+         if( type == Long.class )
+            return Long.valueOf( value );
+      }
+      catch( NumberFormatException e )
+      {
+         return null;   //we couldn't parse it. The caller will use its default.
+      }
+
+      //I'm not calling 'Boolean.parseBoolean( value )' because it will return false if the value isn't true/false
+      //and we want it to return whatever the default is if its not a boolean. This is how the Int and Long functions
+      //behave.
+      if( "true".equalsIgnoreCase( value ) )
+         return Boolean.TRUE;
+
+      if( "false".equalsIgnoreCase( value ) )
+         return Boolean.FALSE;
+
+      return null;
    }
 
    @Override
    public String toString()
    {
+      readChildrenIfNecessary();
       return getName() + "='" + getValue() + "' " + children.size() + " children";
    }
 
    //this should only be called by the serializer
-   public void setChildren( List<GradleIdeaSettingsNode> newChildren )
+   public synchronized void setChildren( List<GradleIdeaSettingsNode> newChildren )
+   {
+      removeAllChildren();
+      children = ChildList.of( newChildren );
+
+      for( GradleIdeaSettingsNode child : newChildren )
+      {
+         child.parent = this;   //removeAllChildren cleared it if this was already one of our children.
+         addToIndex( child );
+      }
+   }
+
+   /**
+      This is called when this node is read in. Its children will be read from the
+      element the first time someone needs them. Until something changes, the element
+      is also what we're written out as.
+      @param  element  the element this node was read from
+   */
+   /*package*/ void setUnreadElement( Element element )
    {
-      children.clear();
-      children.addAll( newChildren );
+      this.unreadElement = element;
+      this.cachedElement = element;
+      this.serializedModificationCount = modificationCount.get();
+   }
+
+   //This reads in our children if they haven't been already. Reading them in doesn't modify us.
+   private void readChildrenIfNecessary()
+   {
+      if( unreadElement == null )
+         return;
+
+      synchronized( this )
+      {
+         Element element = unreadElement;
+         if( element == null )
+            return;  //another thread beat us to it.
+
+         List<GradleIdeaSettingsNode> readChildren = GradleUISettings2.readInSetting( element, this );
+         children = ChildList.of( readChildren );
+         for( GradleIdeaSettingsNode child : readChildren )
+            addToIndex( child );
+
+         unreadElement = null;   //only after the children are in place, so no one sees this half read.
+      }
+   }
+
+   /*
+   Marks this node as changed since it was last serialized. Our ancestors have changed
+   too since they contain us. We always bump every ancestor (rather than stopping at the
+   first one that's already modified) because the serializer may be part way through
+   writing an ancestor and needs to see that it changed again.
+   */
+   private void markModified()
+   {
+      GradleIdeaSettingsNode node = this;
+      while( node != null )
+      {
+         node.modificationCount.incrementAndGet();
+         node = node.parent;
+      }
+   }
+
+   /**
+      @return true if this node or any of its descendants has changed since it was
+              last serialized (or it has never been serialized).
+   */
+   /*package*/ boolean isModified()
+   {
+      return modificationCount.get() != serializedModificationCount;
+   }
+
+   /**
+      @return this node's modification count. The serializer gets this before it
+              writes the node out and passes it back to setCachedElement.
+   */
+   /*package*/ int getModificationCount()
+   {
+      return modificationCount.get();
+   }
+
+   /**
+      @return the element this node was last serialized to. Only valid if this isn't modified.
+   */
+   /*package*/ Element getCachedElement()
+   {
+      return cachedElement;
+   }
+
+   /**
+      This should only be called by the serializer once it has written this node out.
+      If the node changed while it was being written, it stays modified.
+      @param  element           the element the node was written to
+      @param  modificationCount the modification count from before it was written
+   */
+   /*package*/ void setCachedElement( Element element, int modificationCount )
+   {
+      this.cachedElement = element;
+      this.serializedModificationCount = modificationCount;
+   }
+
+   private static boolean areEqual( String value1, String value2 )
+   {
+      if( value1 == null || value2 == null )
+         return value1 == value2;
+
+      return value1.equals( value2 );
    }
 }
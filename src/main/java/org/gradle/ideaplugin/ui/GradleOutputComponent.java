@@ -39,6 +39,12 @@ import java.util.List;
 /**
  Component that handles the output window. It creates an Idea tool window and puts the gradle UI's output
  in said tool window.
+
+ Gradle tells us about every request added or completed, and a burst of them
+ (such as queuing up several commands) would otherwise post a pile of redundant
+ show/hide and icon updates to the EDT. Instead, we note what we want in a
+ pending state and apply it with a single invokeLater. Only the latest requested
+ visibility matters and the icon reflects whether gradle is busy when it's applied.
  */
 public class GradleOutputComponent implements ProjectComponent, GradleUIAvailabilityObserver
 {
@@ -52,6 +58,17 @@ public class GradleOutputComponent implements ProjectComponent, GradleUIAvailabi
    private AnimatedToolIcon animatedToolIcon;
    private Icon gradleIcon;
 
+   private static final int NO_VISIBILITY_CHANGE = 0;
+   private static final int SHOW = 1;
+   private static final int SHOW_IF_HIDDEN = 2;   //shows it, but doesn't activate it if it's already showing
+   private static final int HIDE = 3;
+
+   //the pending state. These are guarded by pendingStateLock.
+   private final Object pendingStateLock = new Object();
+   private int pendingVisibility = NO_VISIBILITY_CHANGE;
+   private boolean isIconUpdatePending;
+   private boolean isFlushScheduled;
+
    public GradleOutputComponent( Project project )
    {
       myProject = project;
@@ -155,7 +172,7 @@ public class GradleOutputComponent implements ProjectComponent, GradleUIAvailabi
       loadIcon( "/org/gradle/ideaplugin/ui/gradle_busy_11.png", icons );
       loadIcon( "/org/gradle/ideaplugin/ui/gradle_busy_12.png", icons );
 
-      animatedToolIcon = new AnimatedToolIcon( myToolWindow, 100, gradleIcon, icons );
+      animatedToolIcon = new AnimatedToolIcon( myToolWindow, myProject, 100, gradleIcon, icons );
    }
 
    //this safely loads the icons. Specifically, it doesn't crash if the icons aren't found.
@@ -177,6 +194,12 @@ public class GradleOutputComponent implements ProjectComponent, GradleUIAvailabi
       if( myToolWindow == null )
          return;
 
+      if( animatedToolIcon != null )
+      {
+         animatedToolIcon.stop();   //otherwise the shared timer keeps animating a tool window that's gone.
+         animatedToolIcon = null;   //it's tied to this tool window. We make a new one if we register another.
+      }
+
       ToolWindowManager toolWindowManager = ToolWindowManager.getInstance( myProject );
       toolWindowManager.unregisterToolWindow( TOOL_WINDOW_ID );
       myToolWindow = null;
@@ -206,17 +229,11 @@ public class GradleOutputComponent implements ProjectComponent, GradleUIAvailabi
                setIcon();
             }
 
-            public void requestComplete( long requestID, final boolean wasSuccessful )
+            public void requestComplete( long requestID, boolean wasSuccessful )
             {
-               SwingUtilities.invokeLater( new Runnable()
-               {
-                  public void run()
-                  {
-                     //if a request fails and we're hidden, show us.
-                     if( !wasSuccessful && !myToolWindow.isVisible() )  //can only check visibility in the EDT
-                        showToolWindow();
-                  }
-               } );
+               //if a request fails and we're hidden, show us.
+               if( !wasSuccessful )
+                  requestVisibility( SHOW_IF_HIDDEN );
 
                setIcon();
             }
@@ -239,26 +256,12 @@ public class GradleOutputComponent implements ProjectComponent, GradleUIAvailabi
    */
    private void showToolWindow()
    {
-      if( myToolWindow != null )
-         SwingUtilities.invokeLater( new Runnable()
-         {
-            public void run()
-            {
-               myToolWindow.activate( new Runnable() { public void run() { } } );   //we're really just interested in the activate, not the runnable.
-            }
-         } );
+      requestVisibility( SHOW );
    }
 
    private void hideToolWindow()
    {
-      if( myToolWindow != null )
-         SwingUtilities.invokeLater( new Runnable()
-         {
-            public void run()
-            {
-               myToolWindow.hide( new Runnable() { public void run() { } } );   //we're really just interested in the activate, not the runnable.
-            }
-         } );
+      requestVisibility( HIDE );
    }
 
    /**
@@ -269,25 +272,86 @@ public class GradleOutputComponent implements ProjectComponent, GradleUIAvailabi
    */
    private void setIcon()
    {
-      if( myToolWindow != null && animatedToolIcon != null )
-         SwingUtilities.invokeLater( new Runnable()
+      synchronized( pendingStateLock )
+      {
+         isIconUpdatePending = true;
+         scheduleFlush();
+      }
+   }
+
+   //this replaces any visibility change that hasn't been applied yet.
+   private void requestVisibility( int visibility )
+   {
+      synchronized( pendingStateLock )
+      {
+         pendingVisibility = visibility;
+         scheduleFlush();
+      }
+   }
+
+   //only call this while synchronized on pendingStateLock.
+   private void scheduleFlush()
+   {
+      if( isFlushScheduled )
+         return;
+
+      isFlushScheduled = true;
+      SwingUtilities.invokeLater( new Runnable()
+      {
+         public void run()
+         {
+            flushPendingState();
+         }
+      } );
+   }
+
+   //This applies the pending state to the tool window. This must be called in the EDT.
+   private void flushPendingState()
+   {
+      int visibility;
+      boolean updateIcon;
+      synchronized( pendingStateLock )
+      {
+         visibility = pendingVisibility;
+         updateIcon = isIconUpdatePending;
+         pendingVisibility = NO_VISIBILITY_CHANGE;
+         isIconUpdatePending = false;
+         isFlushScheduled = false;
+      }
+
+      if( myToolWindow == null )
+         return;  //we were unregistered meanwhile
+
+      switch( visibility )
+      {
+         case SHOW_IF_HIDDEN:
+            if( myToolWindow.isVisible() )   //can only check visibility in the EDT
+               break;
+            //otherwise, fall through and show it
+         case SHOW:
+            myToolWindow.activate( new Runnable() { public void run() { } } );   //we're really just interested in the activate, not the runnable.
+            break;
+
+         case HIDE:
+            myToolWindow.hide( new Runnable() { public void run() { } } );   //we're really just interested in the hide, not the runnable.
+            break;
+      }
+
+      if( updateIcon && animatedToolIcon != null )
+      {
+         if( gradleUI == null )
          {
-            public void run()
-            {
-               if( gradleUI == null )
-               {
-                  myToolWindow.setIcon( gradleIcon );
-                  animatedToolIcon.stop();
-               }
-               else
-               {
-                  if( gradleUI.isBusy() )
-                     animatedToolIcon.start();
-                  else
-                     animatedToolIcon.stop();
-               }
-            }
-         } );
+            myToolWindow.setIcon( gradleIcon );
+            animatedToolIcon.stop();
+         }
+         else
+         {
+            if( gradleUI.isBusy() )
+               animatedToolIcon.start();
+            else
+               animatedToolIcon.stop();
+         }
+      }
    }
 
    /**
@@ -298,7 +362,8 @@ public class GradleOutputComponent implements ProjectComponent, GradleUIAvailabi
     */
    public void gradleUILoaded(DualPaneUIVersion1 gradleUIVersion1, Project ideaProject)
    {
-      initToolWindow();
+      if( ideaProject == myProject )   //we hear about every project's UI
+         initToolWindow();
    }
 
    /**
@@ -308,6 +373,7 @@ public class GradleOutputComponent implements ProjectComponent, GradleUIAvailabi
     */
    public void gradleUIUnloaded( Project project )
    {
-      unregisterToolWindow();
+      if( project == myProject )
+         unregisterToolWindow();
    }
 }
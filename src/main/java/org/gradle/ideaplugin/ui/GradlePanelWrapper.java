@@ -23,6 +23,7 @@ import com.intellij.openapi.fileEditor.FileEditorManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
+import org.gradle.ideaplugin.util.GradleAccess;
 import org.gradle.ideaplugin.util.GradleUtils;
 import org.gradle.openapi.external.ui.AlternateUIInteractionVersion1;
 import org.gradle.openapi.external.ui.DualPaneUIInteractionVersion1;
@@ -36,6 +37,7 @@ import org.gradle.openapi.external.ui.UIFactory;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.SwingConstants;
 import javax.swing.SwingUtilities;
 import java.awt.*;
 import java.io.File;
@@ -75,6 +77,8 @@ public class GradlePanelWrapper
    private List<GradleTabVersion1> additionalTabs = new ArrayList<GradleTabVersion1>();
    private GradleUIApplicationComponent applicationComponent;
    private File gradleHomeDirectory;
+   private int currentLoadID;
+   private boolean isClosed;
 
    public void initialize( Project myProject, SettingsNodeVersion1 settings )
    {
@@ -96,38 +100,34 @@ public class GradlePanelWrapper
     */
    public synchronized void reset()
    {
+      if( isClosed )
+         return;  //the project is closed. A reset queued before then must not get gradle for it again.
+
       File newGradleHomeDirectory = GradleUtils.getGradleSDKDirectory( myProject );
 
       //this will either load the UI from gradle or display the gradle setup panel.
       extractGradleUI(newGradleHomeDirectory);
    }
 
-   /**
-      Compares two files but also checks for their both being null, which is
-      valid, but if one is, so must the other be.
-   */
-   public static boolean areEqual( File file1, File file2)
-   {
-      if ( file1 == null || file2 == null )
-         return file2 == file1; //yes, we're not using '.equals', we're making sure they both equal null because one of them is null!
-
-      return file1.equals(file2);
-   }
-
    //this tries to setup the gradle UI by extracting it from a gradle installation
    //NOTE: do not return from this function without firing off
    //applicationComponent.notifyGradleUILoaded or applicationComponent.notifyGradleUIUnloaded
-   private synchronized boolean extractGradleUI( File newGradleHomeDirectory )
+   //(or handing that responsibility off to loadUIFromGradleInBackground).
+   private synchronized void extractGradleUI( File newGradleHomeDirectory )
    {
-      if( areEqual( this.gradleHomeDirectory, newGradleHomeDirectory ) )
-         return false;  //this is the only place we can return without calling applicationComponent.notifyGradleUIxxxx. That's because there's nothing to do.
+      if( GradleUtils.areEqual( this.gradleHomeDirectory, newGradleHomeDirectory ) )
+         return;  //this is the only place we can return without calling applicationComponent.notifyGradleUIxxxx. That's because there's nothing to do.
 
       this.gradleHomeDirectory = newGradleHomeDirectory;
 
-      DualPaneUIVersion1 previousGradleUI = gradleUI;
+      int loadID = ++currentLoadID;   //this makes any load that's still in progress stale
 
       try
       {
+         //get rid of the current UI now. We can't keep it until the new one loads because
+         //we may be reset again before that happens and then nobody would close it.
+         discardGradleUI();
+
          if( gradleHomeDirectory == null )
          {
             addNotConfiguredPanel();
@@ -139,36 +139,14 @@ public class GradlePanelWrapper
             }
             else
             {
-               //Since this is Swing-related we want to make sure its always executed in the EDT.
-               //When called by Idea, we're not in the EDT. When called from out setup panel, we
-               //ARE in the EDT. If this fails, it will add the gradle setup panel.
-               if( SwingUtilities.isEventDispatchThread() )
-                  loadUIFromGradle();
-               else
-                  SwingUtilities.invokeAndWait( new Runnable()
-                  {
-                     public void run()
-                     {
-                        loadUIFromGradle();
-                     }
-                  } );
+               //Loading the UI means loading lots of classes via reflection. We don't want to do that
+               //in the EDT (several projects opening at once will freeze Idea), so we show a placeholder
+               //and do the loading on a pooled thread. It will notify the application component when done.
+               //We get gradle here rather than on that thread so it's never got for a project that's been closed since.
+               GradleAccess access = GradleUtils.getAccess( myProject );
+               addLoadingPanel( loadID );
+               loadUIFromGradleInBackground( loadID, access );
             }
-
-         if( gradleUI != null )
-         {
-            //by default, we'll set it to your project's directory, but this will probably be overridden when its settings are loaded in aboutToShow.
-            gradleUI.setCurrentDirectory( new File( myProject.getBaseDir().getPath() ) );
-            addAdditionalTabs();
-            setPanelContents( mainPanel, gradleUI.getMainComponent() );
-            setPanelContents( outputPanel, gradleUI.getOutputPanel() );
-            gradleUI.aboutToShow();
-
-            applicationComponent.notifyGradleUILoaded( this );
-            return true;
-         }
-
-         if( previousGradleUI != null )   //if they previously had a UI, but now don't, then it was unloaded
-            applicationComponent.notifyGradleUIUnloaded( myProject );
       }
       catch( Exception e )
       {
@@ -176,34 +154,171 @@ public class GradlePanelWrapper
          applicationComponent.notifyGradleUIUnloaded( myProject );
          addGradleSetupPanel( "Failed to load the gradle library (1).", e );
       }
+   }
 
-      return false;
+   /**
+      This loads the UI's classes from gradle on a pooled thread. The UI itself is
+      Swing, so it's created in the EDT (see finishLoadingUI) where we swap our
+      placeholder for it.
+
+      @param  loadID             identifies this load. If another load is started
+                                 before this one finishes, this one's results are ignored.
+      @param  access             the gradle installation to load from
+   */
+   private void loadUIFromGradleInBackground( final int loadID, final GradleAccess access )
+   {
+      ApplicationManager.getApplication().executeOnPooledThread( new Runnable()
+      {
+         public void run()
+         {
+            boolean isSharedFactoryLoaded = false;
+            Throwable loadFailure = null;
+            try
+            {
+               isSharedFactoryLoaded = loadUIClassesFromGradle( access );
+            }
+            catch( Throwable e )
+            {
+               e.printStackTrace();
+               loadFailure = e;
+            }
+
+            final boolean finalIsSharedFactoryLoaded = isSharedFactoryLoaded;
+            final Throwable finalLoadFailure = loadFailure;
+            SwingUtilities.invokeLater( new Runnable()
+            {
+               public void run()
+               {
+                  finishLoadingUI( loadID, access, finalIsSharedFactoryLoaded, finalLoadFailure );
+               }
+            } );
+         }
+      } );
    }
 
    /**
-      This dynamically loads the UI from a gradle installation. We call into
-      a function inside the gradle open API jar that handles all the reflection
-      of loading the classes. If this fails, we show the gradle setup panel.
+      This loads the UI's classes from a gradle installation. Projects using the
+      same gradle home share them (see GradleAccess). This is called outside the EDT.
+
+      @param  access  the gradle installation to load from
+      @return true if gradle's UI factory was loaded, false if this version of
+              gradle doesn't have it where we expect it. Then the UIFactory has to
+              load the UI itself.
+   */
+   private static boolean loadUIClassesFromGradle( GradleAccess access ) throws Exception
+   {
+      try
+      {
+         access.loadDualPaneUIClasses( GradlePanelWrapper.class.getClassLoader() );
+         return true;
+      }
+      catch( ClassNotFoundException e )
+      {
+         System.err.println( "Gradle's UI factory wasn't found. Using the UIFactory instead: " + e );
+      }
+      catch( NoSuchMethodException e )
+      {
+         System.err.println( "Gradle's UI factory wasn't found. Using the UIFactory instead: " + e );
+      }
 
+      return false;
+   }
+
+   /**
+      This instantiates the UI from a gradle installation. If its classes are
+      already loaded, we use gradle's UI factory. Otherwise, we call into a
+      function inside the gradle open API jar that handles all the reflection of
+      loading the classes (which means loading them in the EDT). This is called
+      in the EDT.
+
+      @param  access                the gradle installation to create the UI from
+      @param  isSharedFactoryLoaded true if loadUIClassesFromGradle loaded gradle's UI factory
+      @return the gradle UI or null if the UI factory returned nothing.
       @author mhunsicker
    */
-   private void loadUIFromGradle( )
+   private DualPaneUIVersion1 loadUIFromGradle( GradleAccess access, boolean isSharedFactoryLoaded ) throws Exception
    {
+      IdeaUIInteraction interaction = new IdeaUIInteraction();
+
+      if( isSharedFactoryLoaded )
+         return access.createDualPaneUI( GradlePanelWrapper.class.getClassLoader(), interaction );
+
+      return UIFactory.createDualPaneUI( GradlePanelWrapper.class.getClassLoader(), gradleHomeDirectory, interaction, false );
+   }
+
+   /**
+      Called in the EDT once a background load finishes. This creates the gradle UI
+      and swaps the loading placeholder for it (or the setup panel if it failed)
+      and fires the appropriate loaded/unloaded notification.
+   */
+   private synchronized void finishLoadingUI( int loadID, GradleAccess access, boolean isSharedFactoryLoaded, Throwable loadFailure )
+   {
+      if( loadID != currentLoadID )
+         return;  //the gradle home was changed again (or we were closed) while we were loading. A newer load is responsible for notifying.
+
+      if( loadFailure != null )
+      {
+         addGradleSetupPanel( "Failed to load the gradle library (3).", loadFailure );
+         return;  //we already sent the unloaded notification for any previous UI when we discarded it.
+      }
+
+      DualPaneUIVersion1 loadedGradleUI = null;
       try
       {
-         gradleUI = UIFactory.createDualPaneUI( GradlePanelWrapper.class.getClassLoader(), gradleHomeDirectory, new IdeaUIInteraction(), false );
-         if( gradleUI != null )
+         loadedGradleUI = loadUIFromGradle( access, isSharedFactoryLoaded );
+         if( loadedGradleUI == null )
+         {
+            addGradleSetupErrorPanel( "Failed to load the gradle library. Nothing was returned by the UI Factory.", "" );
             return;
+         }
+
+         gradleUI = loadedGradleUI;
 
-         addGradleSetupErrorPanel( "Failed to load the gradle library. Nothing was returned by the UI Factory.", "" );
+         //by default, we'll set it to your project's directory, but this will probably be overridden when its settings are loaded in aboutToShow.
+         gradleUI.setCurrentDirectory( new File( myProject.getBaseDir().getPath() ) );
+         addAdditionalTabs();
+         setPanelContents( mainPanel, gradleUI.getMainComponent() );
+         setPanelContents( outputPanel, gradleUI.getOutputPanel() );
+         gradleUI.aboutToShow();
+
+         applicationComponent.notifyGradleUILoaded( this );
       }
-      catch( Throwable e )
+      catch( Exception e )
       {
          e.printStackTrace();
-         addGradleSetupPanel( "Failed to load the gradle library (3).", e );
+         gradleUI = null;
+         if( loadedGradleUI != null )
+            closeQuietly( loadedGradleUI );
+         applicationComponent.notifyGradleUIUnloaded( myProject );
+         addGradleSetupPanel( "Failed to load the gradle library (1).", e );
       }
+   }
+
+   /*
+      This closes the current gradle UI (if any) and tells everyone it's gone. Anything
+      registered against it (actions, observers) is cleaned up by the unloaded notification.
+   */
+   private void discardGradleUI()
+   {
+      if( gradleUI == null )
+         return;
 
+      DualPaneUIVersion1 discardedGradleUI = gradleUI;
       gradleUI = null;
+      closeQuietly( discardedGradleUI );
+      applicationComponent.notifyGradleUIUnloaded( myProject );
+   }
+
+   private static void closeQuietly( DualPaneUIVersion1 gradleUI )
+   {
+      try
+      {
+         gradleUI.close();
+      }
+      catch( Throwable e )
+      {
+         e.printStackTrace();
+      }
    }
 
    public JPanel getMainComponent() { return mainPanel; }
@@ -220,6 +335,24 @@ public class GradlePanelWrapper
                                 "button.",  null );
    }
 
+   //this shows a lightweight placeholder while the gradle UI is loaded in the background. If we're
+   //not in the EDT, this is queued, so we make sure nothing else was shown since (by a newer reset,
+   //or by this load finishing) before we show it.
+   private void addLoadingPanel( final int loadID )
+   {
+      runInEDT( new Runnable()
+      {
+         public void run()
+         {
+            synchronized( GradlePanelWrapper.this )
+            {
+               if( loadID == currentLoadID && gradleUI == null )
+                  setPanelContents( mainPanel, new JLabel( "Loading Gradle...", SwingConstants.CENTER ) );
+            }
+         }
+      } );
+   }
+
    /**
       This sets the main panel to the gradle setup error panel. This is used when
       we could not load gradle either because of an error or lack of setup.
@@ -271,6 +404,15 @@ public class GradlePanelWrapper
       parent.repaint();
    }
 
+   //runs the runnable now if we're in the EDT, otherwise, it queues it up to run there.
+   private static void runInEDT( Runnable runnable )
+   {
+      if( SwingUtilities.isEventDispatchThread() )
+         runnable.run();
+      else
+         SwingUtilities.invokeLater( runnable );
+   }
+
 
    //
          /**
@@ -432,8 +574,14 @@ public class GradlePanelWrapper
       }
    }
 
-   public void close()
+   public synchronized void close()
    {
+      if( isClosed )
+         return;
+
+      isClosed = true;
+      currentLoadID++;  //if we're in the middle of loading, throw away the results.
+
       if( gradleUI != null )
       {
          gradleUI.close();
@@ -441,8 +589,11 @@ public class GradlePanelWrapper
          //I'm going to clear this out because I think this is being called multiple times.
          setPanelContents( mainPanel, new JLabel( "Closing" ) );
          gradleUI = null;
-         applicationComponent.notifyGradleUIUnloaded( myProject );
       }
+
+      //we tell everyone even if we have no UI (such as if it failed to load or is still loading).
+      //This is how the application component and the action lord forget about the project.
+      applicationComponent.notifyGradleUIUnloaded( myProject );
    }
 
    /**
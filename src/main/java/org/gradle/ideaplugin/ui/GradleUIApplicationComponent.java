@@ -22,20 +22,53 @@ import org.gradle.openapi.external.ui.DualPaneUIVersion1;
 import org.jetbrains.annotations.NotNull;
 
 import javax.swing.SwingUtilities;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  This object is instantiated by Idea and lives for the life of your Idea
  instance. It provides a location to add observers so you can be notified when
- the gradle UI is instantiated/destroyed across projects.
+ the gradle UI is instantiated/destroyed across projects. Each open project
+ has its own gradle UI, so we keep track of which projects have one loaded.
+
+ The loaded/unloaded notifications are delivered later (in the event queue), but
+ we know a project's UI as soon as it's loaded. So an observer added in between
+ could hear about the same UI from both its replay and the queued notification.
+ Each load is numbered and we remember the latest load each observer has been
+ told about, so it only hears about each load once.
    @author mhunsicker
 */
 public class GradleUIApplicationComponent implements ApplicationComponent
 {
-   private ObserverLord<GradleUIAvailabilityObserver> observerLord = new ObserverLord<GradleUIAvailabilityObserver>();
-   private GradlePanelWrapper gradlePanelWrapper;
+   private ObserverLord<GradleUIAvailabilityObserver> observerLord = new ObserverLord<GradleUIAvailabilityObserver>( true );  //so whoever loads the UI doesn't wait on the observers
+   private Map<Project, LoadedGradleUI> loadedGradleUIs = new ConcurrentHashMap<Project, LoadedGradleUI>();
+   private AtomicLong notificationSequence = new AtomicLong();
+   private Map<GradleUIAvailabilityObserver, Map<Project, Long>> loadsToldToObservers = new HashMap<GradleUIAvailabilityObserver, Map<Project, Long>>();  //only used while synchronized on this.
    private GradleActionLord actionLord = new GradleActionLord( this );
 
 
+   //
+         /**
+            A project's gradle UI and the sequence number of the notification that loaded it.
+         */
+         private static class LoadedGradleUI
+         {
+            private final DualPaneUIVersion1 gradleUI;
+            private final long loadSequence;
+
+            private LoadedGradleUI( DualPaneUIVersion1 gradleUI, long loadSequence )
+            {
+               this.gradleUI = gradleUI;
+               this.loadSequence = loadSequence;
+            }
+         }
+
    public GradleUIApplicationComponent()
    {
    }
@@ -70,19 +103,97 @@ public class GradleUIApplicationComponent implements ApplicationComponent
    {
       observerLord.addObserver( observer, inEventQueue );
 
-      if( notifyImmediatelyIfAlreadyAvailable && gradlePanelWrapper != null )
+      if( !notifyImmediatelyIfAlreadyAvailable || loadedGradleUIs.isEmpty() )
+         return;
+
+      //take a copy now so we tell the observer about the projects loaded when it was added.
+      final List<Map.Entry<Project, LoadedGradleUI>> loadedEntries = getLoadsToReplay( observer );
+      if( loadedEntries.isEmpty() )
+         return;
+
+      if( !inEventQueue || SwingUtilities.isEventDispatchThread() )
+         notifyGradleUILoaded( observer, loadedEntries );
+      else
       {
-         if( !inEventQueue || SwingUtilities.isEventDispatchThread() )
-            observer.gradleUILoaded( gradlePanelWrapper.getGradleUI(), gradlePanelWrapper.getProject() );
-         else
+         SwingUtilities.invokeLater( new Runnable()  //one post for all the projects
          {
-            SwingUtilities.invokeLater( new Runnable()
+            public void run()
             {
-               public void run()
-               {
-                  observer.gradleUILoaded( gradlePanelWrapper.getGradleUI(), gradlePanelWrapper.getProject() );
-               }
-            } );
+               notifyGradleUILoaded( observer, loadedEntries );
+            }
+         } );
+      }
+   }
+
+   /**
+      This returns the loaded UIs that the observer hasn't been told about yet (not even
+      by a notification that's being delivered now) and notes that it has been. The
+      observer won't be told about these by notifications that are still queued.
+   */
+   private synchronized List<Map.Entry<Project, LoadedGradleUI>> getLoadsToReplay( GradleUIAvailabilityObserver observer )
+   {
+      List<Map.Entry<Project, LoadedGradleUI>> loadedEntries = new ArrayList<Map.Entry<Project, LoadedGradleUI>>();
+
+      Iterator<Map.Entry<Project, LoadedGradleUI>> iterator = loadedGradleUIs.entrySet().iterator();
+      while( iterator.hasNext() )
+      {
+         Map.Entry<Project, LoadedGradleUI> entry = iterator.next();
+         if( markToldAboutLoad( observer, entry.getKey(), entry.getValue().loadSequence ) )
+            loadedEntries.add( entry );
+      }
+
+      return loadedEntries;
+   }
+
+   /**
+      Notes that the observer has been told about the specified load of the project's UI.
+      @return true if it hasn't been told about this load (or a later one) already.
+   */
+   private synchronized boolean markToldAboutLoad( GradleUIAvailabilityObserver observer, Project project, long loadSequence )
+   {
+      Map<Project, Long> loadsTold = loadsToldToObservers.get( observer );
+      if( loadsTold == null )
+      {
+         loadsTold = new HashMap<Project, Long>();
+         loadsToldToObservers.put( observer, loadsTold );
+      }
+
+      Long loadSequenceTold = loadsTold.get( project );
+      if( loadSequenceTold != null && loadSequenceTold >= loadSequence )
+         return false;
+
+      loadsTold.put( project, loadSequence );
+      return true;
+   }
+
+   //Forgets the loads of the project the observer was told about before it was unloaded. Later loads are kept.
+   private synchronized void forgetLoadsBefore( GradleUIAvailabilityObserver observer, Project project, long unloadSequence )
+   {
+      Map<Project, Long> loadsTold = loadsToldToObservers.get( observer );
+      if( loadsTold == null )
+         return;
+
+      Long loadSequenceTold = loadsTold.get( project );
+      if( loadSequenceTold != null && loadSequenceTold < unloadSequence )
+         loadsTold.remove( project );
+   }
+
+   private void notifyGradleUILoaded( GradleUIAvailabilityObserver observer, List<Map.Entry<Project, LoadedGradleUI>> loadedEntries )
+   {
+      Iterator<Map.Entry<Project, LoadedGradleUI>> iterator = loadedEntries.iterator();
+      while( iterator.hasNext() )
+      {
+         Map.Entry<Project, LoadedGradleUI> entry = iterator.next();
+         if( loadedGradleUIs.get( entry.getKey() ) != entry.getValue() )
+            continue;  //it was unloaded or reloaded since we took the copy. The observer gets (or got) those notifications instead.
+
+         try
+         {
+            observer.gradleUILoaded( entry.getValue().gradleUI, entry.getKey() );
+         }
+         catch( Exception e ) //so one project doesn't stop the observer hearing about the rest.
+         {
+            e.printStackTrace();
          }
       }
    }
@@ -90,20 +201,32 @@ public class GradleUIApplicationComponent implements ApplicationComponent
    public void removeUIAvailabilityObserverObserver( GradleUIAvailabilityObserver observer )
    {
       observerLord.removeObserver( observer );
+
+      synchronized( this )
+      {
+         loadsToldToObservers.remove( observer );
+      }
    }
 
    /*package*/ void notifyGradleUILoaded( final GradlePanelWrapper gradlePanelWrapper )
    {
-      this.gradlePanelWrapper = gradlePanelWrapper;
-
       final DualPaneUIVersion1 gradleUI = gradlePanelWrapper.getGradleUI();
       final Project project = gradlePanelWrapper.getProject();
+      final long loadSequence = notificationSequence.incrementAndGet();
+      if( gradleUI != null && project != null )
+         loadedGradleUIs.put( project, new LoadedGradleUI( gradleUI, loadSequence ) );
 
-      observerLord.notifyObservers( new ObserverLord.ObserverNotification<GradleUIAvailabilityObserver>()
+      observerLord.notifyObservers( new ObserverLord.CoalescingNotification<GradleUIAvailabilityObserver>()
       {
          public void notify( GradleUIAvailabilityObserver observer )
          {
-            observer.gradleUILoaded( gradleUI, project );
+            if( markToldAboutLoad( observer, project, loadSequence ) )   //it may have already been replayed this load when it was added.
+               observer.gradleUILoaded( gradleUI, project );
+         }
+
+         public Object getCoalescingKey()
+         {
+            return Arrays.asList( "loaded", project );   //if it's reloaded before the observers hear about it, they only need to hear about the latest UI.
          }
       } );
    }
@@ -115,14 +238,22 @@ public class GradleUIApplicationComponent implements ApplicationComponent
     */
    /*package*/ void notifyGradleUIUnloaded( final Project project )
    {
-      this.gradlePanelWrapper = null;
+      final long unloadSequence = notificationSequence.incrementAndGet();
+      if( project != null )
+         loadedGradleUIs.remove( project );
 
-      observerLord.notifyObservers( new ObserverLord.ObserverNotification<GradleUIAvailabilityObserver>()
+      observerLord.notifyObservers( new ObserverLord.CoalescingNotification<GradleUIAvailabilityObserver>()
       {
          public void notify( GradleUIAvailabilityObserver observer )
          {
+            forgetLoadsBefore( observer, project, unloadSequence );
             observer.gradleUIUnloaded( project );
          }
+
+         public Object getCoalescingKey()
+         {
+            return Arrays.asList( "unloaded", project );
+         }
       } );
    }
 
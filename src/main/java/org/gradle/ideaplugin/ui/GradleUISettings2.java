@@ -21,7 +21,6 @@ import com.intellij.openapi.components.State;
 import com.intellij.openapi.components.Storage;
 import com.intellij.openapi.components.StorageScheme;
 import com.intellij.openapi.project.Project;
-import org.gradle.openapi.external.ui.SettingsNodeVersion1;
 import org.jdom.Element;
 
 import java.util.ArrayList;
@@ -37,6 +36,14 @@ import java.util.List;
    GradleIdeaSettingsNode. This class basically holds onto the root node and
    handles the serialization to/from Idea's project files.
 
+   Idea asks for our state on every save (including autosaves), but usually
+   nothing has changed. The nodes track modifications, so if nothing has changed
+   we return a copy of the state we built last time. Otherwise, we only rebuild
+   the elements of the nodes that changed and copy the rest. Similarly, loading
+   only creates nodes for the parts of the settings that are actually used.
+   Idea owns the elements we give it and the ones it gives us, so we never change
+   those. We only ever copy them.
+
    Note: Idea has a copy of this class into the JetGroovy plugin. It's called
    GradleUISettings. I was hoping to use that one, but a change was required
    to the version we sent them and then 9 came out before we knew we needed to
@@ -60,18 +67,25 @@ public class GradleUISettings2 implements PersistentStateComponent<Element>
    private static final String SETTING = "setting";
    private static final String NAME = "name";
    private static final String VALUE = "value";
+   private Element state;  //the last state we built. We only hand out copies of it, so it's never changed behind our backs.
 
    public GradleIdeaSettingsNode getRootNode() { return rootNode; }
 
-   public Element getState()
+   public synchronized Element getState()
    {
-      Element e = new Element( SETTING );
-      writeOutSetting(e, rootNode);
-      return e;
+      if( state == null || rootNode.isModified() )
+      {
+         state = new Element( SETTING );
+         state.addContent( writeOutSetting( rootNode, new SettingWriter() ) );
+      }
+
+      return (Element) state.clone();
    }
 
-   public void loadState(Element element)
+   public synchronized void loadState(Element element)
    {
+      state = null;
+
       List<GradleIdeaSettingsNode> settingsNodes = readInSetting( element, null );
       if( !settingsNodes.isEmpty() )   //this should have either 1 or none in it.
          rootNode = settingsNodes.get( 0 );
@@ -82,27 +96,65 @@ public class GradleUISettings2 implements PersistentStateComponent<Element>
       return ServiceManager.getService(project, GradleUISettings2.class);
    }
 
-   private void writeOutSetting( Element parentElement, GradleIdeaSettingsNode node )
+   /**
+      This writes out a node and its children. If the node hasn't changed since it
+      was last written (or read in), we copy its element. The element belongs to
+      our previous state or to the state Idea loaded us from, so we can't move it.
+      Otherwise, we build a new one, which copies the elements of any unchanged children.
+      The gradle UI may be changing the settings on another thread while we do this.
+      Each node's children are read as one consistent list (see GradleIdeaSettingsNode).
+
+      @return the element for the node
+   */
+   private Element writeOutSetting( GradleIdeaSettingsNode node, SettingWriter writer )
    {
-      Element element = new Element( SETTING );
-      parentElement.addContent( element );
+      int modificationCount = node.getModificationCount();   //get this first. If the node changes while we're writing it, it stays modified.
+      Element element = node.getCachedElement();
+      if( element != null && !node.isModified() )
+         return (Element) element.clone();
+
+      element = new Element( SETTING );
 
       element.setAttribute( NAME, node.getName() );
       if( node.getValue() != null )
          element.setAttribute( VALUE, node.getValue() );
 
-      for ( SettingsNodeVersion1 settingsNode : node.getChildNodes())
-         writeOutSetting( element, (GradleIdeaSettingsNode)settingsNode );
+      Element previousParentElement = writer.parentElement;
+      writer.parentElement = element;
+      node.visitChildren( writer );
+      writer.parentElement = previousParentElement;
+
+      node.setCachedElement( element, modificationCount );
+      return element;
    }
 
+   //
+         /**
+            This writes out each child it visits and adds it to the parent element.
+            We use one of these for an entire save (rather than iterating over each
+            node's children) so writing the tree doesn't allocate anything beyond
+            the elements themselves.
+         */
+         private class SettingWriter implements GradleIdeaSettingsNode.Visitor
+         {
+            private Element parentElement;
+
+            public boolean visit( GradleIdeaSettingsNode node )
+            {
+               parentElement.addContent( writeOutSetting( node, this ) );
+               return true;
+            }
+         }
+
    /**
-      This does the real work of reading in settings. This recursively reads
-      them and because both the parent and children know about each other, we
-      have to track the children as we read them in.
+      This does the real work of reading in settings. This only reads in the
+      immediate children of the parent element. Each node reads in its own
+      children the first time they're needed (see GradleIdeaSettingsNode), so
+      subtrees that are never used are never turned into nodes.
 
       @author mhunsicker
    */
-   private List<GradleIdeaSettingsNode> readInSetting( Element parentElement, GradleIdeaSettingsNode parentNode )
+   /*package*/ static List<GradleIdeaSettingsNode> readInSetting( Element parentElement, GradleIdeaSettingsNode parentNode )
    {
       List<GradleIdeaSettingsNode> nodesReadIn = new ArrayList<GradleIdeaSettingsNode>();
 
@@ -117,13 +169,10 @@ public class GradleUISettings2 implements PersistentStateComponent<Element>
 
          String value = element.getAttributeValue( VALUE );
          if( value != null )
-            node.setValue( value );
-
-         //read in our children
-         List<GradleIdeaSettingsNode> myChildren = readInSetting( element, node );
+            node.setValueWithoutNotifyingAncestors( value );   //setValue would mark the parent (and the whole tree) as modified.
 
-         //and store them
-         node.setChildren( myChildren );
+         //our children will be read in when they're needed
+         node.setUnreadElement( element );
 
          nodesReadIn.add( node );
       }
@@ -119,7 +119,15 @@ public class MainGradleComponent implements ProjectComponent, ProjectManagerList
 
    public void projectClosed()
    {
+      //close the UI before releasing gradle. This stops any load that's still in progress
+      //and tells everyone (such as the action lord) that the project's UI is gone.
+      gradlePanelWrapper.close();
       unregisterToolWindow();
+
+      GradleUIApplicationComponent gradleUIApplicationComponent = ApplicationManager.getApplication().getComponent( GradleUIApplicationComponent.class );
+      gradleUIApplicationComponent.removeUIAvailabilityObserverObserver( this );
+
+      GradleUtils.releaseAccess( myProject );
    }
 
    public void projectOpened( Project project ) { }
@@ -246,12 +254,14 @@ public class MainGradleComponent implements ProjectComponent, ProjectManagerList
 
    public void gradleUILoaded(DualPaneUIVersion1 gradleUIVersion1, Project ideaProject)
    {
-      initToolWindow();
+      if( ideaProject == myProject )   //we hear about every project's UI
+         initToolWindow();
    }
 
    public void gradleUIUnloaded( Project project )
    {
-      unregisterToolWindow();
+      if( project == myProject )
+         unregisterToolWindow();
    }
 
    /**
@@ -19,6 +19,13 @@ import javax.swing.SwingUtilities;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.awt.EventQueue;
 
 /**
@@ -41,6 +48,27 @@ import java.awt.EventQueue;
    While you have multiple notification classes, you only need 1 (or few)
    actual observer interfaces, containing all the possible functions called
    by all notifications.
+
+     By default, event queue observers are notified synchronously: if you're
+   not in the event queue, notifyObservers waits until they've all been notified.
+   If you construct this to deliver asynchronously, notifications for event
+   queue observers are queued up instead and delivered in a single invokeLater
+   (so a burst of notifications only posts one event). If a notification
+   implements CoalescingNotification, any notification with the same key that
+   hasn't been delivered yet is dropped, since only the latest one matters.
+   Callers that need to know the observers have been notified can always use
+   notifyObserversAndWait.
+
+     Observers can be added and removed from any thread, including by an
+   observer while it's being notified. The observer lists are copy-on-write so
+   notifying never locks and always goes through the observers as they were
+   when it started. Adding and removing are synchronized and use a set to
+   detect duplicates so they don't have to search the lists.
+
+     To find slow observers (such as when Idea freezes while the gradle UI loads),
+   you can turn on timing (or set the system property gradle.ui.observer.timing
+   to true). We then time every notification, keep totals per observer class
+   and report any single notification slower than a threshold to System.err.
    @author mhunsicker
 */
 
@@ -49,8 +77,21 @@ public class ObserverLord<E>
    ////////////////////////////////////////////////////////////////////////////
    //////////////////////////// member variables //////////////////////////////
    ////////////////////////////////////////////////////////////////////////////
-   private List<E> regularObservers = new ArrayList<E>();
-   private List<E> eventQueueObservers = new ArrayList<E>();
+   private List<E> regularObservers = new CopyOnWriteArrayList<E>();
+   private List<E> eventQueueObservers = new CopyOnWriteArrayList<E>();
+   private Set<E> regularObserverSet = new HashSet<E>();       //guarded by this. The same observers as regularObservers.
+   private Set<E> eventQueueObserverSet = new HashSet<E>();    //guarded by this. The same observers as eventQueueObservers.
+
+   private final boolean deliverAsynchronously;
+   private final List<ObserverNotification<E>> pendingNotifications = new ArrayList<ObserverNotification<E>>();  //guarded by itself
+   private boolean isDeliveryScheduled;   //guarded by pendingNotifications
+
+   private static final String TIMING_PROPERTY = "gradle.ui.observer.timing";
+   private static final long DEFAULT_SLOW_NOTIFICATION_THRESHOLD_MILLISECONDS = 50;
+
+   private volatile boolean isTimingEnabled = Boolean.getBoolean( TIMING_PROPERTY );
+   private volatile long slowNotificationThresholdNanoseconds = TimeUnit.MILLISECONDS.toNanos( DEFAULT_SLOW_NOTIFICATION_THRESHOLD_MILLISECONDS );
+   private final ConcurrentHashMap<Class<?>, ObserverTiming> timingsByObserverClass = new ConcurrentHashMap<Class<?>, ObserverTiming>();
 
 
    //
@@ -72,6 +113,88 @@ public class ObserverLord<E>
             public void notify( E observer );
          }
 
+         /**
+          Implement this instead of ObserverNotification if only the latest of
+          several notifications matters (such as a status that's changed several
+          times). When delivering asynchronously, a notification replaces any
+          undelivered notification with an equal key. The replacement is delivered
+          in the new notification's place (after anything sent in between).
+          */
+         public interface CoalescingNotification<E> extends ObserverNotification<E>
+         {
+            /**
+             @return the key that identifies notifications of the same kind. It
+                     must implement equals and hashCode.
+             */
+            public Object getCoalescingKey();
+         }
+
+   //
+         /**
+          The times it took to notify all the observers of a particular class.
+          Get these from getObserverTimings.
+          */
+         public static class ObserverTiming
+         {
+            private final Class<?> observerClass;
+            private long notificationCount;
+            private long slowNotificationCount;
+            private long totalNanoseconds;
+            private long maximumNanoseconds;
+
+            private ObserverTiming( Class<?> observerClass )
+            {
+               this.observerClass = observerClass;
+            }
+
+            private ObserverTiming( ObserverTiming timing )
+            {
+               synchronized( timing )
+               {
+                  this.observerClass = timing.observerClass;
+                  this.notificationCount = timing.notificationCount;
+                  this.slowNotificationCount = timing.slowNotificationCount;
+                  this.totalNanoseconds = timing.totalNanoseconds;
+                  this.maximumNanoseconds = timing.maximumNanoseconds;
+               }
+            }
+
+            private synchronized void record( long nanoseconds, boolean wasSlow )
+            {
+               notificationCount++;
+               totalNanoseconds += nanoseconds;
+               maximumNanoseconds = Math.max( maximumNanoseconds, nanoseconds );
+               if( wasSlow )
+                  slowNotificationCount++;
+            }
+
+            public Class<?> getObserverClass() { return observerClass; }
+            public long getNotificationCount() { return notificationCount; }
+            public long getSlowNotificationCount() { return slowNotificationCount; }
+            public long getTotalMilliseconds() { return TimeUnit.NANOSECONDS.toMillis( totalNanoseconds ); }
+            public long getMaximumMilliseconds() { return TimeUnit.NANOSECONDS.toMillis( maximumNanoseconds ); }
+
+            public String toString()
+            {
+               return observerClass.getName() + ": " + notificationCount + " notifications, " + getTotalMilliseconds() + " ms total, " + getMaximumMilliseconds() + " ms max, " + slowNotificationCount + " slow";
+            }
+         }
+
+   public ObserverLord()
+   {
+      this( false );
+   }
+
+   /**
+      @param  deliverAsynchronously true to deliver notifications to event queue
+                                    observers later (in a single batch) rather than
+                                    waiting for them to be notified.
+   */
+   public ObserverLord( boolean deliverAsynchronously )
+   {
+      this.deliverAsynchronously = deliverAsynchronously;
+   }
+
 
    ////////////////////////////////////////////////////////////////////////////
    ///////////////////////////////// methods //////////////////////////////////
@@ -86,17 +209,17 @@ public class ObserverLord<E>
                             false to notify it immediately.
       @author  mhunsicker
    */
-   public void addObserver( E observer, boolean inEventQueue )
+   public synchronized void addObserver( E observer, boolean inEventQueue )
    {
 		if( !inEventQueue )
-         addIfNew( observer, regularObservers );
+         addIfNew( observer, regularObservers, regularObserverSet );
 		else
-         addIfNew( observer, eventQueueObservers  );
+         addIfNew( observer, eventQueueObservers, eventQueueObserverSet );
    }
 
-   private void addIfNew( E observer, List<E> destinationList )
+   private void addIfNew( E observer, List<E> destinationList, Set<E> destinationSet )
    {
-      if( !destinationList.contains( observer ) )
+      if( destinationSet.add( observer ) )
          destinationList.add( observer );
    }
 
@@ -106,17 +229,22 @@ public class ObserverLord<E>
       @param   observer in,
       @author  mhunsicker
    */
-   public void removeObserver( E observer )
+   public synchronized void removeObserver( E observer )
    {
-      regularObservers.remove( observer );
-      eventQueueObservers.remove( observer );
+      if( regularObserverSet.remove( observer ) )
+         regularObservers.remove( observer );
+
+      if( eventQueueObserverSet.remove( observer ) )
+         eventQueueObservers.remove( observer );
    }
 
 
-   public void removeAllObservers()
+   public synchronized void removeAllObservers()
    {
       regularObservers.clear();
       eventQueueObservers.clear();
+      regularObserverSet.clear();
+      eventQueueObserverSet.clear();
    }
 
    /**
@@ -130,9 +258,98 @@ public class ObserverLord<E>
    {
       //notify all the non-event queue observers now.
       notifyObserversInternal( regularObservers, notification );
+
+      if( deliverAsynchronously )
+         notifyObserversInEventQueueThreadLater( notification );
+      else
+         notifyObserversInEventQueueThread( notification );
+   }
+
+   /**
+      Same as notifyObservers, except this doesn't return until all the observers
+      have been notified, even if we deliver asynchronously. Anything still waiting
+      to be delivered is delivered first so the observers get things in order.
+
+      @param   notification in,  notification sent to the observer
+   */
+   public void notifyObserversAndWait( ObserverNotification<E> notification )
+   {
+      notifyObserversInternal( regularObservers, notification );
       notifyObserversInEventQueueThread( notification );
    }
 
+   /**
+      This queues up a notification for the event queue observers. If we haven't
+      already, we post an event to deliver everything that's queued up.
+
+      @param   notification in,  notification sent to the observer
+   */
+   private void notifyObserversInEventQueueThreadLater( ObserverNotification<E> notification )
+   {
+      if( eventQueueObservers.size() == 0 ) //if we have no event queue observsers, we're done
+         return;
+
+      if( !queueNotification( notification ) )
+         return;  //a delivery is already scheduled. It'll pick this up.
+
+      SwingUtilities.invokeLater( new Runnable()
+      {
+         public void run()
+         {
+            deliverPendingNotifications();
+         }
+      } );
+   }
+
+   //returns true if the caller needs to schedule a delivery.
+   private boolean queueNotification( ObserverNotification<E> notification )
+   {
+      synchronized( pendingNotifications )
+      {
+         if( notification instanceof CoalescingNotification )
+            removePendingNotification( ( (CoalescingNotification) notification ).getCoalescingKey() );
+
+         pendingNotifications.add( notification );
+
+         if( isDeliveryScheduled )
+            return false;
+
+         isDeliveryScheduled = true;
+         return true;
+      }
+   }
+
+   //only call this while synchronized on pendingNotifications.
+   private void removePendingNotification( Object coalescingKey )
+   {
+      Iterator<ObserverNotification<E>> iterator = pendingNotifications.iterator();
+      while( iterator.hasNext() )
+      {
+         ObserverNotification<E> pendingNotification = iterator.next();
+         if( pendingNotification instanceof CoalescingNotification && coalescingKey.equals( ( (CoalescingNotification) pendingNotification ).getCoalescingKey() ) )
+         {
+            iterator.remove();
+            return;  //there can only ever be one pending with the same key.
+         }
+      }
+   }
+
+   //This delivers everything that's queued up. Only call this in the event queue.
+   private void deliverPendingNotifications()
+   {
+      List<ObserverNotification<E>> notifications;
+      synchronized( pendingNotifications )
+      {
+         notifications = new ArrayList<ObserverNotification<E>>( pendingNotifications );
+         pendingNotifications.clear();
+         isDeliveryScheduled = false;
+      }
+
+      Iterator<ObserverNotification<E>> iterator = notifications.iterator();
+      while( iterator.hasNext() )
+         notifyObserversInternal( eventQueueObservers, iterator.next() );
+   }
+
    /**
       Here is where we notify all the event queue observers. To notify the event
       queue observers we have to make sure it occurs in the event queue thread. If
@@ -147,7 +364,7 @@ public class ObserverLord<E>
          return;
 
       if( EventQueue.isDispatchThread() )
-         notifyObserversInternal( eventQueueObservers, notification );
+         notifyObserversInEventQueueThreadNow( notification );
       else
       {
          try
@@ -156,7 +373,7 @@ public class ObserverLord<E>
             {
                public void run()
                {
-                  notifyObserversInternal( eventQueueObservers, notification );
+                  notifyObserversInEventQueueThreadNow( notification );
                }
             } );
          }
@@ -168,6 +385,15 @@ public class ObserverLord<E>
       }
    }
 
+   //Only call this in the event queue. Anything still waiting to be delivered goes first so the observers get things in order.
+   private void notifyObserversInEventQueueThreadNow( ObserverNotification notification )
+   {
+      if( deliverAsynchronously )
+         deliverPendingNotifications();
+
+      notifyObserversInternal( eventQueueObservers, notification );
+   }
+
    /**
       The internal mechanism that actually notifies the observers. We just
       iterate though each observer and pass it to the notification mechanism.
@@ -178,10 +404,13 @@ public class ObserverLord<E>
    */
 	private void notifyObserversInternal( List<E> observers, ObserverNotification notification )
    {
+      boolean isTimingEnabled = this.isTimingEnabled;
+
       Iterator<E> iterator = observers.iterator();
       while( iterator.hasNext() )
       {
          E observer = iterator.next();
+         long startTime = isTimingEnabled ? System.nanoTime() : 0;
          try
          {
             notification.notify( observer );
@@ -190,7 +419,83 @@ public class ObserverLord<E>
          {
             e.printStackTrace();
          }
+
+         if( isTimingEnabled )
+            recordTiming( observer, System.nanoTime() - startTime );
+      }
+   }
+
+   private void recordTiming( E observer, long nanoseconds )
+   {
+      Class<?> observerClass = observer.getClass();
+      ObserverTiming timing = timingsByObserverClass.get( observerClass );
+      if( timing == null )
+      {
+         timing = new ObserverTiming( observerClass );
+         ObserverTiming existingTiming = timingsByObserverClass.putIfAbsent( observerClass, timing );
+         if( existingTiming != null )
+            timing = existingTiming;
       }
+
+      boolean isSlow = nanoseconds >= slowNotificationThresholdNanoseconds;
+      timing.record( nanoseconds, isSlow );
+
+      if( isSlow )
+         System.err.println( "Slow observer notification: " + observerClass.getName() + " took " + TimeUnit.NANOSECONDS.toMillis( nanoseconds ) + " ms (in " + Thread.currentThread().getName() + ")" );
+   }
+
+   /**
+      Turns timing of notifications on or off. See the class comment.
+
+      @param   isTimingEnabled true to time notifications
+   */
+   public void setTimingEnabled( boolean isTimingEnabled )
+   {
+      this.isTimingEnabled = isTimingEnabled;
+   }
+
+   public boolean isTimingEnabled()
+   {
+      return isTimingEnabled;
+   }
+
+   /**
+      @param   milliseconds notifications that take at least this long are
+                            reported and counted as slow
+   */
+   public void setSlowNotificationThreshold( long milliseconds )
+   {
+      this.slowNotificationThresholdNanoseconds = TimeUnit.MILLISECONDS.toNanos( milliseconds );
+   }
+
+   /**
+      @return a copy of the timings of each observer class, slowest (by total
+              time) first. This is empty if timing has never been enabled.
+   */
+   public List<ObserverTiming> getObserverTimings()
+   {
+      List<ObserverTiming> timings = new ArrayList<ObserverTiming>();
+      Iterator<ObserverTiming> iterator = timingsByObserverClass.values().iterator();
+      while( iterator.hasNext() )
+         timings.add( new ObserverTiming( iterator.next() ) );
+
+      Collections.sort( timings, new Comparator<ObserverTiming>()
+      {
+         public int compare( ObserverTiming timing1, ObserverTiming timing2 )
+         {
+            if( timing1.totalNanoseconds == timing2.totalNanoseconds )
+               return 0;
+
+            return timing1.totalNanoseconds > timing2.totalNanoseconds ? -1 : 1;
+         }
+      } );
+
+      return timings;
+   }
+
+   public void resetObserverTimings()
+   {
+      timingsByObserverClass.clear();
    }
 
    public String toString()
@@ -62,6 +62,16 @@ public class FavoriteTaskActionWrapper implements ActionWrapper
     projects. This will be used to generate a unique ID for an action.
     */
    public String getName()
+   {
+      return getName( favoriteTaskName );
+   }
+
+   /**
+    @param  favoriteTaskName the display name of the favorite
+    @return the name of the action for the specified favorite. This lets us see if we already
+            have an action for a favorite without creating one.
+    */
+   /*package*/ static String getName( String favoriteTaskName )
    {
       return "Gradle: Execute Favorite '" + favoriteTaskName + "'";
    }
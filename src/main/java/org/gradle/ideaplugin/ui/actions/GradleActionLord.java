@@ -16,17 +16,22 @@
 package org.gradle.ideaplugin.ui.actions;
 
 import com.intellij.openapi.actionSystem.ActionManager;
+import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.project.Project;
 import org.gradle.ideaplugin.ui.GradleUIApplicationComponent;
 import org.gradle.ideaplugin.ui.GradleUIAvailabilityObserver;
 import org.gradle.openapi.external.foundation.favorites.FavoriteTaskVersion1;
 import org.gradle.openapi.external.foundation.favorites.FavoritesEditorVersion1;
+import org.gradle.ideaplugin.ui.MainGradleComponent;
 import org.gradle.openapi.external.ui.DualPaneUIVersion1;
+import org.gradle.openapi.external.ui.OutputObserverVersion1;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import javax.swing.SwingUtilities;
 import java.util.Iterator;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
 
@@ -35,11 +40,25 @@ import java.util.List;
  be 1 instance of this per Idea instance. As such, it tracks actions across
  multiple projects.
 
+ Several projects can have the same actions (such as a favorite named 'build'),
+ but Idea only has one action per name. We count how many projects are using
+ each action name. The action is registered with Idea when the first project
+ uses it and unregistered when the last one stops.
+
+ When a project's gradle UI is (re)loaded or its favorites change, we compare
+ its favorites to the actions it already has and only add or remove the ones
+ that differ. That way, Idea's actions (and the keymaps bound to them) aren't
+ churned every time. Gradle doesn't tell us when favorites are edited, so we
+ check whenever a command is executed or the tasks are refreshed (you can also
+ call favoritesChanged).
+
  @author mhunsicker
   */
 public class GradleActionLord implements GradleUIAvailabilityObserver
 {
-   private HashMap<Project, List<ActionWrapper>> projectsToActionMap = new HashMap<Project,List<ActionWrapper>>();
+   private Map<Project, Map<String, ActionWrapper>> projectsToActionMap = new ConcurrentHashMap<Project, Map<String, ActionWrapper>>();  //the inner maps are keyed by action name and only used while synchronized on this.
+   private ConcurrentHashMap<String, AtomicInteger> actionReferenceCounts = new ConcurrentHashMap<String, AtomicInteger>();
+   private Map<Project, FavoritesChangedObserver> favoritesChangedObservers = new ConcurrentHashMap<Project, FavoritesChangedObserver>();  //only changed while synchronized on this.
 
    public GradleActionLord( GradleUIApplicationComponent gradleUIApplicationComponent )
    {
@@ -53,13 +72,8 @@ public class GradleActionLord implements GradleUIAvailabilityObserver
     */
    public void gradleUILoaded( DualPaneUIVersion1 gradleUIVersion1, Project project )
    {
-      unregisterActionsFromIdea( project );   //remove any existing wrappers for this project in case this is being reloaded.
-
-      List<ActionWrapper> actionWrappers = generateActionWrappers( gradleUIVersion1 );
-
-      projectsToActionMap.put( project, actionWrappers );
-
-      registerActionsWithIdea( actionWrappers );
+      synchronizeActions( gradleUIVersion1, project );
+      observeFavorites( gradleUIVersion1, project );
    }
 
    /**
@@ -73,17 +87,75 @@ public class GradleActionLord implements GradleUIAvailabilityObserver
    }
 
    /**
-    Generates all the action wrappers for this project. This does NOT register them with Idea.
+    Call this if the favorites of the specified project have changed. This updates
+    the actions to match.
+    @param project the project whose favorites have changed
+    */
+   public void favoritesChanged( Project project )
+   {
+      DualPaneUIVersion1 gradleUI = MainGradleComponent.getGradleUIForProject( project );
+      if( gradleUI != null )
+         synchronizeActions( gradleUI, project );
+   }
+
+   /**
+    This makes the project's actions match what it should have (its favorites, etc.).
+    Actions it already has that it should still have are left alone.
     @param gradleUIVersion1 gradle
-    @return a list of action wrappers
+    @param project          the project
     */
-   private List<ActionWrapper> generateActionWrappers( DualPaneUIVersion1 gradleUIVersion1 )
+   private synchronized void synchronizeActions( DualPaneUIVersion1 gradleUIVersion1, Project project )
    {
-      List<ActionWrapper> actionWrappers = new ArrayList<ActionWrapper>( );
+      Map<String, ActionWrapper> existingActionWrappers = projectsToActionMap.get( project );
+      if( existingActionWrappers == null )
+      {
+         existingActionWrappers = new LinkedHashMap<String, ActionWrapper>();
+         projectsToActionMap.put( project, existingActionWrappers );
+      }
 
-      getFavoriteTaskActionWrappers( gradleUIVersion1, actionWrappers );
+      Map<String, ActionWrapper> desiredActionWrappers = generateActionWrappers( gradleUIVersion1, existingActionWrappers );
 
-      actionWrappers.add( new ReExecuteLastCommandActionWrapper() );
+      //remove the ones we no longer need
+      Iterator<Map.Entry<String, ActionWrapper>> iterator = existingActionWrappers.entrySet().iterator();
+      while( iterator.hasNext() )
+      {
+         Map.Entry<String, ActionWrapper> entry = iterator.next();
+         if( !desiredActionWrappers.containsKey( entry.getKey() ) )
+         {
+            iterator.remove();
+            unregisterActionFromIdea( entry.getKey() );
+         }
+      }
+
+      //add the new ones
+      Iterator<ActionWrapper> desiredIterator = desiredActionWrappers.values().iterator();
+      while( desiredIterator.hasNext() )
+      {
+         ActionWrapper actionWrapper = desiredIterator.next();
+         if( !existingActionWrappers.containsKey( actionWrapper.getName() ) )
+         {
+            existingActionWrappers.put( actionWrapper.getName(), actionWrapper );
+            registerActionWithIdea( actionWrapper );
+         }
+      }
+   }
+
+   /**
+    Generates all the action wrappers for this project. This does NOT register them with Idea.
+    @param gradleUIVersion1        gradle
+    @param existingActionWrappers the project's current action wrappers. We reuse these rather than creating new ones.
+    @return the action wrappers keyed by name
+    */
+   private Map<String, ActionWrapper> generateActionWrappers( DualPaneUIVersion1 gradleUIVersion1, Map<String, ActionWrapper> existingActionWrappers )
+   {
+      Map<String, ActionWrapper> actionWrappers = new LinkedHashMap<String, ActionWrapper>( );
+
+      getFavoriteTaskActionWrappers( gradleUIVersion1, existingActionWrappers, actionWrappers );
+
+      ActionWrapper reExecuteActionWrapper = existingActionWrappers.get( ReExecuteLastCommandActionWrapper.NAME );
+      if( reExecuteActionWrapper == null )
+         reExecuteActionWrapper = new ReExecuteLastCommandActionWrapper();
+      actionWrappers.put( ReExecuteLastCommandActionWrapper.NAME, reExecuteActionWrapper );
 
       return actionWrappers;
    }
@@ -91,9 +163,10 @@ public class GradleActionLord implements GradleUIAvailabilityObserver
    /**
     this creates action wrappers for all the favorite tasks.
     @param gradleUIVersion1 gradle
+    @param existingActionWrappers the project's current action wrappers
     @param actionWrappers where we put the action wrappers we generate
     */
-   private void getFavoriteTaskActionWrappers( DualPaneUIVersion1 gradleUIVersion1, List<ActionWrapper> actionWrappers )
+   private void getFavoriteTaskActionWrappers( DualPaneUIVersion1 gradleUIVersion1, Map<String, ActionWrapper> existingActionWrappers, Map<String, ActionWrapper> actionWrappers )
    {
       FavoritesEditorVersion1 favoritesEditor = gradleUIVersion1.getFavoritesEditor();
       Iterator<FavoriteTaskVersion1> favoriteTask = favoritesEditor.getFavoriteTasks().iterator();
@@ -101,75 +174,173 @@ public class GradleActionLord implements GradleUIAvailabilityObserver
       {
          FavoriteTaskVersion1 favoriteTaskVersion1 = favoriteTask.next();
 
-         actionWrappers.add( new FavoriteTaskActionWrapper( favoriteTaskVersion1.getDisplayName() ) );
+         String name = FavoriteTaskActionWrapper.getName( favoriteTaskVersion1.getDisplayName() );
+         ActionWrapper actionWrapper = existingActionWrappers.get( name );   //only create new wrappers for new favorites
+         if( actionWrapper == null )
+            actionWrapper = new FavoriteTaskActionWrapper( favoriteTaskVersion1.getDisplayName() );
+
+         actionWrappers.put( name, actionWrapper );
       }
    }
 
    /**
-    Registers the actions with Idea. This makes Idea aware of them and they can be assigned hot-keys, etc.
-    @param actionWrappers the actions to add
+    This watches the project's gradle UI so we notice when its favorites change. We can
+    be told about the same UI more than once, so we only add one observer per UI. If the
+    project has a new UI, we stop watching its old one.
     */
-   private void registerActionsWithIdea( List<ActionWrapper> actionWrappers )
+   private synchronized void observeFavorites( DualPaneUIVersion1 gradleUIVersion1, Project project )
    {
-      Iterator<ActionWrapper> iterator = actionWrappers.iterator();
-      while( iterator.hasNext() )
+      FavoritesChangedObserver observer = favoritesChangedObservers.get( project );
+      if( observer != null )
       {
-         ActionWrapper actionWrapper = iterator.next();
-         String name = actionWrapper.getName();
+         if( observer.gradleUI == gradleUIVersion1 )
+            return;
 
-         if( ActionManager.getInstance().getAction( name ) == null )
-            ActionManager.getInstance().registerAction( name, actionWrapper.getAction() );
+         observer.gradleUI.removeOutputObserver( observer );
       }
+
+      observer = new FavoritesChangedObserver( gradleUIVersion1, project );
+      favoritesChangedObservers.put( project, observer );
+      gradleUIVersion1.addOutputObserver( observer );
+   }
+
+   /**
+    Registers the action with Idea. This makes Idea aware of it and it can be assigned hot-keys, etc.
+    @param actionWrapper the action to add
+    */
+   private void registerActionWithIdea( ActionWrapper actionWrapper )
+   {
+      String name = actionWrapper.getName();
+
+      if( addReference( name ) )
+         registerAction( name, actionWrapper.getAction() );
+   }
+
+   //Unregisters the action from Idea if no other project is using it.
+   private void unregisterActionFromIdea( String name )
+   {
+      if( removeReference( name ) )
+         unregisterAction( name );
+   }
+
+   //these are the only places we go to Idea's action manager. Tests override them so they can run without Idea.
+   /*package*/ void registerAction( String name, AnAction action )
+   {
+      if( ActionManager.getInstance().getAction( name ) == null )
+         ActionManager.getInstance().registerAction( name, action );
+   }
+
+   /*package*/ void unregisterAction( String name )
+   {
+      if( ActionManager.getInstance().getAction( name ) != null )
+         ActionManager.getInstance().unregisterAction( name );
    }
 
    /**
     This cleans up the actions associated with the specified project. We unregister
-    the actions from Idea.
+    the actions from Idea that no other project is using and stop watching its favorites.
     */
-   private void unregisterActionsFromIdea( Project project )
+   private synchronized void unregisterActionsFromIdea( Project project )
    {
-      List<ActionWrapper> actionWrappers = projectsToActionMap.get( project );
+      FavoritesChangedObserver observer = favoritesChangedObservers.remove( project );
+      if( observer != null )
+         observer.gradleUI.removeOutputObserver( observer );
+
+      Map<String, ActionWrapper> actionWrappers = projectsToActionMap.remove( project );
       if( actionWrappers == null )
          return;
 
-      //remove it from the map before we unregister them so we can verify no one else is using them.
-      projectsToActionMap.remove( project );
-
-      Iterator<ActionWrapper> iterator = actionWrappers.iterator();
+      Iterator<String> iterator = actionWrappers.keySet().iterator();
       while( iterator.hasNext() )
-      {
-         ActionWrapper actionWrapper = iterator.next();
-         String name = actionWrapper.getName();
-
-         if( ActionManager.getInstance().getAction( name ) != null && isInUse( name ) )
-            ActionManager.getInstance().unregisterAction( name );
-      }
+         unregisterActionFromIdea( iterator.next() );
    }
 
    /**
-    Determines if an action with the specified name exists and is therefore in use.
-    We look through the project/actions map for an action with the specified name.
-    This is used to unregister actions. We only want to unregister ones that aren't
-    being used.
-    @param name the sought name.
-    @return
+    Notes that another project is using the action with the specified name.
+    @param name the action's name
+    @return true if this is the first project using it (so it needs to be registered with Idea).
     */
-   private boolean isInUse( String name )
+   private boolean addReference( String name )
    {
-      Iterator<List<ActionWrapper>> mainIterator = projectsToActionMap.values().iterator();
-      while( mainIterator.hasNext() )
+      while( true )
       {
-         List<ActionWrapper> actionWrappers = mainIterator.next();
-         Iterator<ActionWrapper> innerIterator = actionWrappers.iterator();
-
-         while( innerIterator.hasNext() )
+         AtomicInteger referenceCount = actionReferenceCounts.get( name );
+         if( referenceCount == null )
          {
-            ActionWrapper actionWrapper = innerIterator.next();
-            if( actionWrapper.getName().equals( name ) )
+            referenceCount = actionReferenceCounts.putIfAbsent( name, new AtomicInteger( 1 ) );
+            if( referenceCount == null )
                return true;
          }
+
+         int count = referenceCount.get();
+         if( count > 0 && referenceCount.compareAndSet( count, count + 1 ) )
+            return false;
+
+         //the count hit zero and it's being removed from the map. Try again (we'll add a new count).
       }
+   }
 
-      return false;
+   /**
+    Notes that a project has stopped using the action with the specified name.
+    @param name the action's name
+    @return true if this was the last project using it (so it needs to be unregistered from Idea).
+    */
+   private boolean removeReference( String name )
+   {
+      AtomicInteger referenceCount = actionReferenceCounts.get( name );
+      if( referenceCount == null )
+         return false;
+
+      if( referenceCount.decrementAndGet() != 0 )
+         return false;
+
+      actionReferenceCounts.remove( name, referenceCount );
+      return true;
    }
+
+   //
+
+         /**
+          Gradle doesn't tell us when favorites are edited, but the user usually executes
+          something afterward (or refreshes). So we use that as a hint to check whether
+          the favorites changed. Checking is cheap when nothing has.
+          */
+         private class FavoritesChangedObserver implements OutputObserverVersion1
+         {
+            private DualPaneUIVersion1 gradleUI;
+            private Project project;
+
+            private FavoritesChangedObserver( DualPaneUIVersion1 gradleUI, Project project )
+            {
+               this.gradleUI = gradleUI;
+               this.project = project;
+            }
+
+            public void executionRequestAdded( long requestID, String fullCommand, String displayName, boolean forceOutputToBeShown )
+            {
+               favoritesChangedLater();
+            }
+
+            public void refreshRequestAdded( long requestID, boolean forceOutputToBeShown )
+            {
+               favoritesChangedLater();
+            }
+
+            public void requestComplete( long requestID, boolean wasSuccessful ) { }
+
+            public void outputTabClosed( long requestID ) { }
+
+            //we're called from gradle's threads. Idea wants actions changed in the EDT.
+            private void favoritesChangedLater()
+            {
+               SwingUtilities.invokeLater( new Runnable()
+               {
+                  public void run()
+                  {
+                     if( projectsToActionMap.containsKey( project ) )   //don't resurrect the actions of an unloaded project.
+                        favoritesChanged( project );
+                  }
+               } );
+            }
+         }
 }
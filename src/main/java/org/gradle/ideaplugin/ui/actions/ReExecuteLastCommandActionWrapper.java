@@ -31,6 +31,8 @@ import org.gradle.openapi.external.ui.DualPaneUIVersion1;
 */
 public class ReExecuteLastCommandActionWrapper implements ActionWrapper
 {
+   /*package*/ static final String NAME = "Gradle: Re-Execute Last Command";  //so we can see if we already have one without creating one
+
    private AnAction action;
 
    public ReExecuteLastCommandActionWrapper()
@@ -55,7 +57,7 @@ public class ReExecuteLastCommandActionWrapper implements ActionWrapper
     */
    public String getName()
    {
-      return "Gradle: Re-Execute Last Command";
+      return NAME;
    }
 
    public AnAction getAction()
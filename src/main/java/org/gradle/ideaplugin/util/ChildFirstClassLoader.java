@@ -0,0 +1,300 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gradle.ideaplugin.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+   This class loader loads classes from its own classpath first. Only if the class
+   cannot be found does it delegate. The delegation handles loading all the standard
+   Java classes, and things from the ext and endorsed directories.
+
+   It's given an index of what's in each jar of its classpath. Classes that
+   aren't in any of them go straight to the parent so we don't pay for a failed
+   search (and its ClassNotFoundException) for every JDK and Idea class. Classes
+   and resources that are in them are read directly from the right jar rather
+   than searching the jars in order. If the index is incomplete, we fall back to
+   URLClassLoader's search.
+
+   On Java 7 and later, this is registered as parallel capable, so it locks per
+   class name rather than locking the whole loader. That way the gradle UI threads
+   and script threads don't wait on each other when loading unrelated classes.
+   Idea 12 still runs on Java 6, which doesn't have any of that, so we register
+   reflectively and fall back to locking the whole loader there.
+
+   The jars we read classes from ourselves are closed by closeJarFiles. That isn't
+   an override of URLClassLoader.close (Java 7 and later) since we can't call the
+   super class's version without compiling against Java 7. Call both if you can.
+
+   @author jmurph
+*/
+class ChildFirstClassLoader extends URLClassLoader
+{
+   private static final boolean isParallelCapable = registerAsParallelCapableIfPossible();
+
+   private final GradleJarIndex jarIndex;
+   private final ConcurrentMap<File, JarFile> openJarFiles = new ConcurrentHashMap<File, JarFile>();
+   private final ConcurrentMap<String, Object> classLoadingLocks = new ConcurrentHashMap<String, Object>();  //only used if we're parallel capable
+
+   public ChildFirstClassLoader( URL[] urls, ClassLoader parent, GradleJarIndex jarIndex )
+   {
+      super( urls, parent );
+      this.jarIndex = jarIndex;
+   }
+
+   /**
+      Overrides the method from ClassLoader.  This implementation attempts to
+      load the class using our classpath first.  Only if the class cannot be
+      found does it delegate.
+      @author jmurph
+   */
+   @Override protected Class<?> loadClass(String name, boolean resolve)
+      throws ClassNotFoundException
+   {
+      if( !jarIndex.mightContainClass( name ) )
+         return super.loadClass(name, resolve);   //it's not ours. Don't bother looking for it.
+
+      synchronized( getLoadingLock( name ) )
+      {
+         Class<?> c = findLoadedClass(name);
+         if (c != null)
+            return c;
+
+         try
+         {
+            c = findClass(name);
+            if (resolve)
+               resolveClass(c);
+            return c;
+         }
+         catch (ClassNotFoundException e)
+         {
+            return super.loadClass(name, resolve);
+         }
+      }
+   }
+
+   /*
+   This registers us as parallel capable if we're running on Java 7 or later. It has to be
+   called reflectively because we still have to run on Java 6. This is caller sensitive, so
+   it must be called from this class (it registers whichever class calls it).
+   */
+   private static boolean registerAsParallelCapableIfPossible()
+   {
+      try
+      {
+         Method method = ClassLoader.class.getDeclaredMethod( "registerAsParallelCapable" );
+         method.setAccessible( true );
+         return Boolean.TRUE.equals( method.invoke( null ) );
+      }
+      catch( NoSuchMethodException e )
+      {
+         return false;  //Java 6
+      }
+      catch( Exception e )
+      {
+         e.printStackTrace();
+         return false;
+      }
+   }
+
+   /*
+   This returns the object to lock while loading the specified class. If we're parallel
+   capable, that's an object per class name (which is what Java 7's ClassLoader.getClassLoadingLock
+   does, but we can't call that on Java 6). Otherwise, it's the whole loader (which the
+   VM also locks when it calls us).
+   */
+   private Object getLoadingLock( String name )
+   {
+      if( !isParallelCapable )
+         return this;
+
+      Object lock = new Object();
+      Object existingLock = classLoadingLocks.putIfAbsent( name, lock );
+      return existingLock != null ? existingLock : lock;
+   }
+
+   @Override protected Class<?> findClass( String name ) throws ClassNotFoundException
+   {
+      if( !jarIndex.isComplete() )
+         return super.findClass( name );
+
+      String entryName = GradleJarIndex.getEntryNameOfClass( name );
+      File library = jarIndex.getFirstLibraryContaining( entryName );
+      if( library == null )
+         throw new ClassNotFoundException( name );
+
+      try
+      {
+         JarFile jarFile = getJarFile( library );
+         JarEntry entry = jarFile.getJarEntry( entryName );
+         if( entry == null )
+            throw new ClassNotFoundException( name );   //the jar changed out from under us
+
+         byte[] bytes = readEntry( jarFile, entry );
+         URL libraryURL = library.toURI().toURL();
+
+         definePackageIfNeeded( name, jarFile, libraryURL );
+
+         return defineClass( name, bytes, 0, bytes.length, new CodeSource( libraryURL, entry.getCodeSigners() ) );
+      }
+      catch( IOException e )
+      {
+         throw new ClassNotFoundException( name, e );
+      }
+   }
+
+   @Override public URL findResource( String name )
+   {
+      if( !jarIndex.isComplete() )
+         return super.findResource( name );
+
+      File library = jarIndex.getFirstLibraryContaining( name );
+      if( library == null )
+         return null;
+
+      return getResourceURL( library, name );
+   }
+
+   @Override public Enumeration<URL> findResources( String name ) throws IOException
+   {
+      if( !jarIndex.isComplete() )
+         return super.findResources( name );
+
+      List<URL> urls = new ArrayList<URL>();
+      Iterator<File> iterator = jarIndex.getLibrariesContaining( name ).iterator();
+      while( iterator.hasNext() )
+      {
+         URL url = getResourceURL( iterator.next(), name );
+         if( url != null )
+            urls.add( url );
+      }
+
+      return Collections.enumeration( urls );
+   }
+
+   private URL getResourceURL( File library, String name )
+   {
+      try
+      {
+         return new URL( "jar:" + library.toURI().toURL() + "!/" + name );
+      }
+      catch( MalformedURLException e )
+      {
+         return null;
+      }
+   }
+
+   //we keep the jars open once we've used them. They're closed by closeJarFiles.
+   private JarFile getJarFile( File library ) throws IOException
+   {
+      JarFile jarFile = openJarFiles.get( library );
+      if( jarFile != null )
+         return jarFile;
+
+      jarFile = new JarFile( library );
+      JarFile existingJarFile = openJarFiles.putIfAbsent( library, jarFile );
+      if( existingJarFile != null )   //another thread beat us to it
+      {
+         jarFile.close();
+         return existingJarFile;
+      }
+
+      return jarFile;
+   }
+
+   private static byte[] readEntry( JarFile jarFile, JarEntry entry ) throws IOException
+   {
+      int size = (int) entry.getSize();
+      ByteArrayOutputStream output = new ByteArrayOutputStream( size > 0 ? size : 8192 );
+      InputStream input = jarFile.getInputStream( entry );
+      try
+      {
+         byte[] buffer = new byte[ 8192 ];
+         int bytesRead;
+         while( ( bytesRead = input.read( buffer ) ) != -1 )
+            output.write( buffer, 0, bytesRead );
+      }
+      finally
+      {
+         input.close();
+      }
+
+      return output.toByteArray();
+   }
+
+   //this defines the class's package (with the jar's manifest information) the first time we load a class from it.
+   private void definePackageIfNeeded( String className, JarFile jarFile, URL libraryURL ) throws IOException
+   {
+      int lastDot = className.lastIndexOf( '.' );
+      if( lastDot == -1 )
+         return;
+
+      String packageName = className.substring( 0, lastDot );
+      if( getPackage( packageName ) != null )
+         return;
+
+      try
+      {
+         Manifest manifest = jarFile.getManifest();
+         if( manifest != null )
+            definePackage( packageName, manifest, libraryURL );
+         else
+            definePackage( packageName, null, null, null, null, null, null, null );
+      }
+      catch( IllegalArgumentException e )
+      {
+         //another thread defined it first. That's fine.
+      }
+   }
+
+   //This closes the jars we've opened. It doesn't close the ones URLClassLoader opened (see the class comment).
+   public void closeJarFiles()
+   {
+      Iterator<JarFile> iterator = openJarFiles.values().iterator();
+      while( iterator.hasNext() )
+      {
+         try
+         {
+            iterator.next().close();
+         }
+         catch( IOException e )
+         {
+            //keep closing the others
+         }
+      }
+
+      openJarFiles.clear();
+   }
+}
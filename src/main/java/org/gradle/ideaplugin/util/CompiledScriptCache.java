@@ -0,0 +1,107 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gradle.ideaplugin.util;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+   This holds onto compiled groovy scripts so running the same script again only
+   costs an evaluation, not a compilation. Scripts are keyed by a hash of their
+   text. The least recently used scripts are discarded once we hold the maximum.
+
+   A compiled script is bound to the engine that compiled it (evaluating it uses
+   that engine's state), so there's one of these per pooled engine (see
+   ScriptEnginePool) and it goes away with the engine.
+*/
+class CompiledScriptCache
+{
+   public static final int DEFAULT_MAXIMUM_SIZE = 64;
+
+   private final Map<String, CompiledScript> compiledScripts;
+
+   public CompiledScriptCache( final int maximumSize )
+   {
+      compiledScripts = new LinkedHashMap<String, CompiledScript>( 16, 0.75f, true )   //access order gives us LRU
+      {
+         @Override protected boolean removeEldestEntry( Map.Entry<String, CompiledScript> eldest )
+         {
+            return size() > maximumSize;
+         }
+      };
+   }
+
+   /**
+      This returns the compiled form of the script, compiling it if we haven't already.
+
+      @param  compiler   the engine to compile with if it's not cached
+      @param  scriptText the script
+      @return the compiled script
+   */
+   public CompiledScript getCompiledScript( Compilable compiler, String scriptText ) throws ScriptException
+   {
+      String key = hash( scriptText );
+
+      synchronized( compiledScripts )
+      {
+         CompiledScript compiledScript = compiledScripts.get( key );
+         if( compiledScript != null )
+            return compiledScript;
+      }
+
+      //we compile outside the lock so one slow compile doesn't hold up everyone else. If two threads
+      //compile the same script at the same time, one of them just wastes its effort.
+      CompiledScript compiledScript = compiler.compile( scriptText );
+
+      synchronized( compiledScripts )
+      {
+         compiledScripts.put( key, compiledScript );
+      }
+
+      return compiledScript;
+   }
+
+   private static String hash( String scriptText )
+   {
+      try
+      {
+         byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( scriptText.getBytes( "UTF-8" ) );
+
+         StringBuilder builder = new StringBuilder( digest.length * 2 );
+         for( byte b : digest )
+         {
+            builder.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) );
+            builder.append( Character.forDigit( b & 0xF, 16 ) );
+         }
+
+         return builder.toString();
+      }
+      catch( NoSuchAlgorithmException e )
+      {
+         return scriptText;   //every JRE has SHA-1, but if not, the text itself works as a key.
+      }
+      catch( UnsupportedEncodingException e )
+      {
+         return scriptText;
+      }
+   }
+}
@@ -15,27 +15,56 @@
  */
 package org.gradle.ideaplugin.util;
 
+import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.project.Project;
+import org.gradle.openapi.external.ExternalUtility;
+import org.gradle.openapi.external.ui.DualPaneUIInteractionVersion1;
+import org.gradle.openapi.external.ui.DualPaneUIVersion1;
 import org.jetbrains.annotations.Nullable;
-import org.jetbrains.plugins.gradle.util.GradleLibraryManager;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 
+/**
+   This provides access to a single gradle installation. Projects that use the same
+   gradle home share one of these (see GradleUtils.getAccess) so the gradle classes
+   are only loaded once no matter how many projects are open.
+
+   There are two class loaders: the one gradle's UI is loaded into (see
+   createDualPaneUI) and the one scripts are executed with. Most projects only
+   ever show the UI, so the script class loader (and its jar index) isn't created
+   until someone actually asks for it. Both are closed when we're released.
+*/
 public class GradleAccess
 {
-   @Nullable private final ClassLoader gradleClassLoader;
+   @Nullable private final File gradleHomeDirectory;
+   @Nullable private final Collection<File> gradleLibraries;
+   @Nullable private ClassLoader gradleClassLoader;   //lazily created the first time someone needs it
+   @Nullable private ScriptEnginePool scriptEnginePool;
+   @Nullable private ClassLoader uiClassLoader;       //the class loader gradle's UI classes are in
+   private Method dualPaneUIFactoryMethod;   //lazily found the first time a project asks for a UI
+   private boolean isReleased;
+   private int referenceCount;
 
    public GradleAccess(final Project project)
    {
-      initGradleHome( getGradleHomeDirectory( project ) );
-      gradleClassLoader = createGradleClassLoader( getGradleLibJars( project ) );
+      this( GradleUtils.getGradleSDKDirectory( project ), GradleUtils.getGradleLibraryManager().getAllLibraries( project ) );
+   }
+
+   /*package*/ GradleAccess( @Nullable File gradleHomeDirectory, @Nullable Collection<File> gradleLibraries )
+   {
+      this.gradleHomeDirectory = gradleHomeDirectory;
+      this.gradleLibraries = gradleLibraries;
+      if( gradleHomeDirectory != null )
+         initGradleHome( gradleHomeDirectory );
    }
 
    private void initGradleHome( File gradleHomeDirectory )
@@ -43,51 +72,29 @@ public class GradleAccess
       System.setProperty("gradle.home", gradleHomeDirectory.getAbsolutePath());
    }
 
-   public File getGradleHomeDirectory( Project project )
+   //returns the gradle home directory this is for. Note: this will be null for non-gradle projects.
+   @Nullable public File getGradleHomeDirectory()
    {
-      return GradleUtils.getGradleLibraryManager().getGradleHome( project );
+      return gradleHomeDirectory;
    }
 
-   private List<URL> getGradleLibJars( Project project )
+   @Nullable private ClassLoader createGradleClassLoader(@Nullable final Collection<File> gradleLibraries )
    {
-      Collection<File> allLibraries = GradleUtils.getGradleLibraryManager().getAllLibraries( project );
-      return convertToURLList( allLibraries );
+      if( gradleLibraries == null )
+         return null;   //this happens for non-gradle projects.
+
+      List<URL> urls = convertToURLList( gradleLibraries );
+      return new ChildFirstClassLoader(urls.toArray(new URL[urls.size()]), Thread.currentThread().getContextClassLoader(), GradleJarIndex.load( gradleLibraries, getJarIndexFile() ));
    }
 
-   @Nullable private static ClassLoader createGradleClassLoader(final List<URL> urls )
+   //The jar index is saved in Idea's system directory. There's one per gradle home.
+   @Nullable private File getJarIndexFile()
    {
-      if( urls == null )
-         return null;   //this happens for non-gradle projects.
+      if( gradleHomeDirectory == null )
+         return null;
 
-      return new URLClassLoader(urls.toArray(new URL[urls.size()]), Thread.currentThread().getContextClassLoader())
-      {
-         /**
-            Overrides the method from ClassLoader.  This implementation attempts to
-            load the class using our classpath first.  Only if the class cannot be
-            found does it delegate.  The delegation handles loading all the standard
-            Java classes, and things from the ext and endorsed directories.
-            @author jmurph
-         */
-         @Override protected synchronized Class<?> loadClass(String name, boolean resolve)
-            throws ClassNotFoundException
-         {
-            Class<?> c = findLoadedClass(name);
-            if (c != null)
-               return c;
-
-            try
-            {
-               c = findClass(name);
-               if (resolve)
-                  resolveClass(c);
-               return c;
-            }
-            catch (ClassNotFoundException e)
-            {
-               return super.loadClass(name, resolve);
-            }
-         }
-      };
+      File indexDirectory = new File( PathManager.getSystemPath(), "gradle-gui" );
+      return new File( indexDirectory, "jar-index-" + Integer.toHexString( gradleHomeDirectory.getAbsolutePath().hashCode() ) + ".idx" );
    }
 
    private List<URL> convertToURLList( Collection<File> files )
@@ -114,17 +121,136 @@ public class GradleAccess
       return urls;
    }
 
-   //returns the gradle class loader. Note: this will be null for non-gradle projects.
-   @Nullable public ClassLoader getGradleClassLoader()
+   //returns the gradle class loader, creating it if necessary. Note: this will be null for non-gradle projects (or once we've been released).
+   @Nullable public synchronized ClassLoader getGradleClassLoader()
    {
+      if( gradleClassLoader == null && !isReleased )
+      {
+         gradleClassLoader = createGradleClassLoader( gradleLibraries );
+         if( gradleClassLoader != null )
+            scriptEnginePool = new ScriptEnginePool( gradleClassLoader );
+      }
+
       return gradleClassLoader;
    }
 
    //This allows you to execute groovy scripts using the current
    //gradle settings (the groovy embedded within gradle).
-   public ScriptExecutor createExecutor()
+   public synchronized ScriptExecutor createExecutor()
    {
-      return new ScriptExecutor(gradleClassLoader);
+      return new ScriptExecutor(getGradleClassLoader(), scriptEnginePool);
+   }
+
+   /**
+      This loads gradle's UI classes from this gradle installation (if they
+      aren't already) so createDualPaneUI only has to instantiate the UI.
+      Loading them takes a while, so call this outside the EDT.
+
+      @param  parentClassLoader the class loader that defines the open API interfaces
+      @throws ClassNotFoundException if this version of gradle doesn't have its UI factory where we expect it
+      @throws NoSuchMethodException  if gradle's UI factory doesn't have the method we expect
+   */
+   public void loadDualPaneUIClasses( ClassLoader parentClassLoader ) throws Exception
+   {
+      getDualPaneUIFactoryMethod( parentClassLoader );
+   }
+
+   /**
+      This creates a gradle UI from this gradle installation. The first call
+      loads gradle's UI classes, unless loadDualPaneUIClasses already has. Later
+      calls (from other projects using the same gradle home) reuse those classes
+      and just instantiate a new UI. The UI is Swing, so call this in the EDT.
+
+      @param  parentClassLoader the class loader that defines the open API interfaces
+      @param  interaction       how the UI interacts with us
+      @return the gradle UI
+   */
+   public DualPaneUIVersion1 createDualPaneUI( ClassLoader parentClassLoader, DualPaneUIInteractionVersion1 interaction ) throws Exception
+   {
+      Method factoryMethod = getDualPaneUIFactoryMethod( parentClassLoader );
+
+      ClassLoader oldCtxClassLoader = Thread.currentThread().getContextClassLoader();
+      try
+      {
+         Thread.currentThread().setContextClassLoader( factoryMethod.getDeclaringClass().getClassLoader() );
+         return (DualPaneUIVersion1) factoryMethod.invoke( null, interaction );
+      }
+      finally
+      {
+         Thread.currentThread().setContextClassLoader( oldCtxClassLoader );
+      }
+   }
+
+   //this finds gradle's UI factory. This is what the open API's UIFactory does, but it does it for every call.
+   private synchronized Method getDualPaneUIFactoryMethod( ClassLoader parentClassLoader ) throws Exception
+   {
+      if( dualPaneUIFactoryMethod == null )
+      {
+         if( gradleHomeDirectory == null )
+            throw new IllegalStateException( "No gradle home directory." );
+
+         if( isReleased )
+            throw new IllegalStateException( "This gradle installation has been released." );
+
+         uiClassLoader = ExternalUtility.getGradleClassloader( parentClassLoader, gradleHomeDirectory, false );
+         Class<?> factoryClass = uiClassLoader.loadClass( "org.gradle.openapi.wrappers.UIWrapperFactory" );
+         dualPaneUIFactoryMethod = factoryClass.getDeclaredMethod( "createDualPaneUI", DualPaneUIInteractionVersion1.class );
+      }
+
+      return dualPaneUIFactoryMethod;
+   }
+
+   //these are only called by GradleUtils (which synchronizes them) to track the projects using this.
+   /*package*/ void addReference()
+   {
+      referenceCount++;
+   }
+
+   //returns true if this is no longer referenced by any project
+   /*package*/ boolean removeReference()
+   {
+      referenceCount--;
+      return referenceCount <= 0;
+   }
+
+   /**
+      Called when the last project using this gradle home goes away. This drops
+      our classes so they can be garbage collected.
+   */
+   /*package*/ synchronized void release()
+   {
+      isReleased = true;
+      dualPaneUIFactoryMethod = null;
+      if( scriptEnginePool != null )
+         scriptEnginePool.close();
+
+      close( gradleClassLoader );
+      close( uiClassLoader );
+
+      scriptEnginePool = null;
+      gradleClassLoader = null;
+      uiClassLoader = null;
+   }
+
+   //This closes the class loader's jar files. ChildFirstClassLoader always closes the jars it read itself,
+   //but the ones URLClassLoader opened can only be closed as of Java 7 (when it became Closeable). On Java 6,
+   //those stay open until it's garbage collected.
+   private static void close( @Nullable ClassLoader classLoader )
+   {
+      if( classLoader instanceof ChildFirstClassLoader )
+         ((ChildFirstClassLoader) classLoader).closeJarFiles();
+
+      if( !( classLoader instanceof Closeable ) )
+         return;
+
+      try
+      {
+         ((Closeable) classLoader).close();
+      }
+      catch( IOException e )
+      {
+         e.printStackTrace();
+      }
    }
 }
 
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gradle.ideaplugin.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+   This is an index of the classes and resources contained in gradle's library
+   jars. It maps each entry name (ex: 'org/gradle/Foo.class') to the jars that
+   contain it. The child-first class loader uses it to go directly to the right
+   jar rather than searching every jar in order. It also sends requests for
+   classes that aren't in gradle's jars (java.*, com.intellij.*, etc.) straight to
+   its parent rather than building a ClassNotFoundException for each of them.
+
+   Reading every jar is expensive, so the index is saved to disk and reused as
+   long as the jars have the same paths, sizes and modification times.
+
+   If we can't read a library (or it's a directory rather than a jar), the index
+   is considered incomplete and we'll claim to possibly contain everything. That
+   way, the worst that happens is we search the jars like we would without it.
+*/
+class GradleJarIndex
+{
+   private static final int FILE_FORMAT_VERSION = 1;
+
+   private final List<File> libraries;
+   private final Map<String, int[]> entriesToLibraries = new HashMap<String, int[]>();  //the ints are indices into 'libraries'
+   private boolean isComplete = true;
+
+   private GradleJarIndex( List<File> libraries )
+   {
+      this.libraries = libraries;
+   }
+
+   /**
+      This loads the index from the specified file if it's still valid for the
+      libraries. Otherwise, it builds the index by reading the entries of each
+      library jar and saves it to the file for next time.
+
+      @param  libraries  gradle's library jars
+      @param  indexFile  where the index is saved. Null to not save it.
+      @return the index
+   */
+   public static GradleJarIndex load( Collection<File> libraries, @Nullable File indexFile )
+   {
+      List<File> libraryList = new ArrayList<File>( libraries );
+
+      if( indexFile != null && indexFile.exists() )
+      {
+         try
+         {
+            GradleJarIndex index = readIndex( libraryList, indexFile );
+            if( index != null )
+               return index;
+         }
+         catch( IOException e )
+         {
+            //it's corrupt. We'll just rebuild it.
+         }
+      }
+
+      GradleJarIndex index = build( libraryList );
+      if( indexFile != null && index.isComplete )   //no point in saving an incomplete index
+      {
+         try
+         {
+            index.writeIndex( indexFile );
+         }
+         catch( IOException e )
+         {
+            e.printStackTrace();
+         }
+      }
+
+      return index;
+   }
+
+   private static GradleJarIndex build( List<File> libraries )
+   {
+      GradleJarIndex index = new GradleJarIndex( libraries );
+
+      for( int libraryIndex = 0; libraryIndex < libraries.size(); libraryIndex++ )
+         index.addLibrary( libraryIndex );
+
+      return index;
+   }
+
+   private void addLibrary( int libraryIndex )
+   {
+      File library = libraries.get( libraryIndex );
+      if( !library.isFile() )
+      {
+         isComplete = false;  //we're not going to crawl directories
+         return;
+      }
+
+      ZipFile zipFile = null;
+      try
+      {
+         zipFile = new ZipFile( library );
+         Enumeration<? extends ZipEntry> entries = zipFile.entries();
+         while( entries.hasMoreElements() )
+            addEntry( entries.nextElement().getName(), libraryIndex );
+      }
+      catch( IOException e )
+      {
+         isComplete = false;
+      }
+      finally
+      {
+         if( zipFile != null )
+         {
+            try
+            {
+               zipFile.close();
+            }
+            catch( IOException e )
+            {
+               //ignore it. We've already read what we need.
+            }
+         }
+      }
+   }
+
+   private void addEntry( String entryName, int libraryIndex )
+   {
+      int[] existingLibraries = entriesToLibraries.get( entryName );
+      if( existingLibraries == null )
+      {
+         entriesToLibraries.put( entryName, new int[] { libraryIndex } );
+         return;
+      }
+
+      if( existingLibraries[ existingLibraries.length - 1 ] == libraryIndex )
+         return;  //jars can (oddly) contain duplicate entries
+
+      int[] newLibraries = new int[ existingLibraries.length + 1 ];
+      System.arraycopy( existingLibraries, 0, newLibraries, 0, existingLibraries.length );
+      newLibraries[ existingLibraries.length ] = libraryIndex;
+      entriesToLibraries.put( entryName, newLibraries );
+   }
+
+   /**
+      This reads the index from disk. The file starts with the path, size and
+      modification time of each library. If any of that differs from the current
+      libraries, the file is stale and this returns null.
+   */
+   private static GradleJarIndex readIndex( List<File> libraries, File indexFile ) throws IOException
+   {
+      DataInputStream input = new DataInputStream( new BufferedInputStream( new FileInputStream( indexFile ), 64 * 1024 ) );
+      try
+      {
+         if( input.readInt() != FILE_FORMAT_VERSION )
+            return null;
+
+         if( input.readInt() != libraries.size() )
+            return null;
+
+         for( int libraryIndex = 0; libraryIndex < libraries.size(); libraryIndex++ )
+         {
+            File library = libraries.get( libraryIndex );
+            String path = input.readUTF();
+            long length = input.readLong();
+            long lastModified = input.readLong();
+            if( !path.equals( library.getAbsolutePath() ) || length != library.length() || lastModified != library.lastModified() )
+               return null;
+         }
+
+         GradleJarIndex index = new GradleJarIndex( libraries );
+         int entryCount = input.readInt();
+         for( int entry = 0; entry < entryCount; entry++ )
+         {
+            String entryName = input.readUTF();
+            int[] entryLibraries = new int[ input.readUnsignedShort() ];
+            for( int libraryIndex = 0; libraryIndex < entryLibraries.length; libraryIndex++ )
+            {
+               entryLibraries[ libraryIndex ] = input.readUnsignedShort();
+               if( entryLibraries[ libraryIndex ] >= libraries.size() )
+                  return null;   //it's corrupt
+            }
+
+            index.entriesToLibraries.put( entryName, entryLibraries );
+         }
+
+         return index;
+      }
+      finally
+      {
+         input.close();
+      }
+   }
+
+   //this writes to a temporary file first so we never leave a half-written index behind.
+   private void writeIndex( File indexFile ) throws IOException
+   {
+      File directory = indexFile.getParentFile();
+      if( directory != null && !directory.exists() && !directory.mkdirs() )
+         throw new IOException( "Could not create directory '" + directory + "'" );
+
+      File temporaryFile = new File( indexFile.getPath() + ".tmp" );
+      DataOutputStream output = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temporaryFile ), 64 * 1024 ) );
+      try
+      {
+         output.writeInt( FILE_FORMAT_VERSION );
+         output.writeInt( libraries.size() );
+
+         Iterator<File> libraryIterator = libraries.iterator();
+         while( libraryIterator.hasNext() )
+         {
+            File library = libraryIterator.next();
+            output.writeUTF( library.getAbsolutePath() );
+            output.writeLong( library.length() );
+            output.writeLong( library.lastModified() );
+         }
+
+         output.writeInt( entriesToLibraries.size() );
+
+         Iterator<Map.Entry<String, int[]>> entryIterator = entriesToLibraries.entrySet().iterator();
+         while( entryIterator.hasNext() )
+         {
+            Map.Entry<String, int[]> entry = entryIterator.next();
+            output.writeUTF( entry.getKey() );
+            output.writeShort( entry.getValue().length );
+            for( int libraryIndex : entry.getValue() )
+               output.writeShort( libraryIndex );
+         }
+      }
+      finally
+      {
+         output.close();
+      }
+
+      if( indexFile.exists() && !indexFile.delete() )
+         throw new IOException( "Could not replace '" + indexFile + "'" );
+
+      if( !temporaryFile.renameTo( indexFile ) )
+         throw new IOException( "Could not rename '" + temporaryFile + "' to '" + indexFile + "'" );
+   }
+
+   /**
+      @return true if every library was indexed. If not, the entry lookups
+              can't be trusted and you'll need to search the libraries yourself.
+   */
+   public boolean isComplete()
+   {
+      return isComplete;
+   }
+
+   /**
+      @param  className  the fully qualified name of a class
+      @return false if the class definitely isn't in gradle's jars, true if it might be.
+   */
+   public boolean mightContainClass( String className )
+   {
+      return !isComplete || entriesToLibraries.containsKey( getEntryNameOfClass( className ) );
+   }
+
+   //converts 'org.gradle.Foo' to 'org/gradle/Foo.class'
+   public static String getEntryNameOfClass( String className )
+   {
+      return className.replace( '.', '/' ).concat( ".class" );
+   }
+
+   /**
+      @param  entryName  the name of a class file or resource (ex: 'org/gradle/Foo.class')
+      @return the first library containing the entry or null if none do.
+   */
+   @Nullable public File getFirstLibraryContaining( String entryName )
+   {
+      int[] entryLibraries = entriesToLibraries.get( entryName );
+      if( entryLibraries == null )
+         return null;
+
+      return libraries.get( entryLibraries[ 0 ] );
+   }
+
+   /**
+      @param  entryName  the name of a class file or resource
+      @return all the libraries containing the entry (in classpath order).
+   */
+   public List<File> getLibrariesContaining( String entryName )
+   {
+      int[] entryLibraries = entriesToLibraries.get( entryName );
+      if( entryLibraries == null )
+         return Collections.emptyList();
+
+      List<File> matchingLibraries = new ArrayList<File>( entryLibraries.length );
+      for( int libraryIndex : entryLibraries )
+         matchingLibraries.add( libraries.get( libraryIndex ) );
+
+      return matchingLibraries;
+   }
+}
@@ -27,6 +27,7 @@ import org.jetbrains.plugins.groovy.util.SdkHomeConfigurable;
 
 import javax.swing.*;
 import java.io.File;
+import java.io.IOException;
 import java.util.Map;
 import java.util.HashMap;
 
@@ -34,21 +35,85 @@ import java.util.HashMap;
 public class GradleUtils
 {
    @NotNull private static final Map<Project, GradleAccess> accessMap = new HashMap<Project, GradleAccess>();
+   @NotNull private static final Map<File, GradleAccess> sharedAccessMap = new HashMap<File, GradleAccess>();  //keyed by canonical gradle home
 
    protected GradleUtils() {}
 
+   /**
+    * This returns the access to the project's gradle installation. Projects that use the
+    * same gradle home share a single GradleAccess (and therefore its class loaders). Call
+    * releaseAccess when the project is closed.
+    */
    @NotNull public static synchronized GradleAccess getAccess(@NotNull final Project project)
    {
+      File gradleHomeDirectory = getCanonicalFile( getGradleSDKDirectory( project ) );
+
       GradleAccess access = accessMap.get(project);
+      if( access != null && !areEqual( access.getGradleHomeDirectory(), gradleHomeDirectory ) )
+      {
+         releaseAccess( project );  //the gradle home was changed
+         access = null;
+      }
+
       if (access == null)
       {
-         access = new GradleAccess(project);
+         access = sharedAccessMap.get( gradleHomeDirectory );
+         if( access == null )
+         {
+            access = new GradleAccess( gradleHomeDirectory, getGradleLibraryManager().getAllLibraries( project ) );
+            sharedAccessMap.put( gradleHomeDirectory, access );
+         }
+
+         access.addReference();
          accessMap.put(project, access);
       }
 
       return access;
    }
 
+   /**
+    * This releases the project's hold on its GradleAccess. When the last project
+    * using a gradle home releases it, its class loaders are released as well.
+    * @param project the project that no longer needs access to gradle.
+    */
+   public static synchronized void releaseAccess(@NotNull final Project project)
+   {
+      GradleAccess access = accessMap.remove( project );
+      if( access != null && access.removeReference() )
+      {
+         sharedAccessMap.remove( access.getGradleHomeDirectory() );
+         access.release();
+      }
+   }
+
+   //this gets the canonical form of a file so different paths to the same gradle home are considered equal.
+   private static File getCanonicalFile( File file )
+   {
+      if( file == null )
+         return null;
+
+      try
+      {
+         return file.getCanonicalFile();
+      }
+      catch( IOException e )
+      {
+         return file.getAbsoluteFile();
+      }
+   }
+
+   /**
+    * Compares two files but also checks for their both being null, which is
+    * valid, but if one is, so must the other be.
+    */
+   public static boolean areEqual( File file1, File file2)
+   {
+      if ( file1 == null || file2 == null )
+         return file2 == file1; //yes, we're not using '.equals', we're making sure they both equal null because one of them is null!
+
+      return file1.equals(file2);
+   }
+
    /**
     * This returns the current Gradle SDK directory as a File (vs VirtualFile).
     *
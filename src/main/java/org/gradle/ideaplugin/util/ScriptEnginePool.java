@@ -0,0 +1,117 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gradle.ideaplugin.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+   This pools groovy script engines for a single class loader. Creating a
+   ScriptEngineManager means a service-loader search of the class loader, so we
+   only do that once. Engines are handed out to one caller at a time and put back
+   when they're done. We only keep a few idle engines around; extras are dropped.
+
+   A compiled script belongs to the engine that compiled it (and engines aren't
+   thread safe), so each pooled engine has its own cache of compiled scripts that
+   goes wherever the engine goes.
+
+   There's one of these per GradleAccess and it's closed when the GradleAccess is
+   released. After that, engines can't be borrowed and returned ones are dropped,
+   so nothing keeps using (or recreates a manager on) the closed class loader.
+*/
+class ScriptEnginePool
+{
+   public static final int MAXIMUM_IDLE_ENGINES = 4;
+
+   private final ClassLoader classLoader;
+   private ScriptEngineManager scriptEngineManager;
+   private final BlockingQueue<PooledEngine> idleEngines = new ArrayBlockingQueue<PooledEngine>( MAXIMUM_IDLE_ENGINES );
+   private volatile boolean isClosed;
+
+   //
+         /**
+            An engine and the scripts it has compiled.
+         */
+         public static class PooledEngine
+         {
+            private final ScriptEngine engine;
+            private final CompiledScriptCache compiledScriptCache = new CompiledScriptCache( CompiledScriptCache.DEFAULT_MAXIMUM_SIZE );
+
+            private PooledEngine( ScriptEngine engine )
+            {
+               this.engine = engine;
+            }
+
+            public ScriptEngine getEngine() { return engine; }
+            public CompiledScriptCache getCompiledScriptCache() { return compiledScriptCache; }
+         }
+
+   public ScriptEnginePool( @NotNull ClassLoader classLoader )
+   {
+      this.classLoader = classLoader;
+   }
+
+   /**
+      This gets an engine for your exclusive use. Call returnEngine when you're done with it.
+      @return a groovy script engine
+      @throws ScriptException if there's no groovy engine or we've been closed.
+   */
+   @NotNull public PooledEngine borrowEngine() throws ScriptException
+   {
+      if( isClosed )
+         throw new ScriptException( "The gradle installation has been released." );
+
+      PooledEngine pooledEngine = idleEngines.poll();
+      if( pooledEngine != null )
+         return pooledEngine;
+
+      ScriptEngine engine = getScriptEngineManager().getEngineByName( "groovy" );
+      if( engine == null )
+         throw new ScriptException( "Could not find a groovy script engine." );
+
+      return new PooledEngine( engine );
+   }
+
+   public synchronized void returnEngine( @NotNull PooledEngine pooledEngine )
+   {
+      if( !isClosed )
+         idleEngines.offer( pooledEngine );  //if we're full, it's just dropped
+   }
+
+   private synchronized ScriptEngineManager getScriptEngineManager() throws ScriptException
+   {
+      if( isClosed )
+         throw new ScriptException( "The gradle installation has been released." );
+
+      if( scriptEngineManager == null )
+         scriptEngineManager = new ScriptEngineManager( classLoader );
+
+      return scriptEngineManager;
+   }
+
+   //drops all our engines. Engines that are currently borrowed are dropped when they're returned.
+   public synchronized void close()
+   {
+      isClosed = true;
+      idleEngines.clear();
+      scriptEngineManager = null;
+   }
+}
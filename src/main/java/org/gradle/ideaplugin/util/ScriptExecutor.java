@@ -18,47 +18,354 @@ package org.gradle.ideaplugin.util;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import javax.script.Compilable;
 import javax.script.ScriptException;
-import javax.script.ScriptEngineManager;
 import javax.script.ScriptEngine;
 import javax.script.Bindings;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+/**
+   This executes groovy scripts using a specific class loader (usually gradle's).
+   Script engines are pooled per class loader and each pooled engine caches the
+   scripts it compiles, so executing the same script repeatedly usually only costs
+   an evaluation.
+
+   Many scripts can be executed at once (see executeBatch), optionally in parallel.
+   Scripts can also be executed asynchronously (see executeAsync). Those run on
+   a small, bounded thread pool shared by all executors so slow scripts don't
+   block the EDT.
+*/
 public class ScriptExecutor
 {
+   private static final int ASYNC_THREAD_COUNT = 2;
+   private static final int ASYNC_QUEUE_SIZE = 64;
+
+   private static final ThreadPoolExecutor asyncExecutor = createAsyncExecutor();
+   private static final ScheduledThreadPoolExecutor timeoutExecutor = createTimeoutExecutor();
+
    @Nullable private final ClassLoader classLoader;
+   @Nullable private final ScriptEnginePool scriptEnginePool;
 
    public ScriptExecutor(@Nullable ClassLoader classLoader)
+   {
+      this(classLoader, classLoader == null ? null : new ScriptEnginePool(classLoader));
+   }
+
+   /*package*/ ScriptExecutor(@Nullable ClassLoader classLoader, @Nullable ScriptEnginePool scriptEnginePool)
    {
       this.classLoader = classLoader;
+      this.scriptEnginePool = scriptEnginePool;
+   }
+
+   private static ThreadPoolExecutor createAsyncExecutor()
+   {
+      ThreadPoolExecutor executor = new ThreadPoolExecutor( ASYNC_THREAD_COUNT, ASYNC_THREAD_COUNT, 60, TimeUnit.SECONDS,
+                                                            new ArrayBlockingQueue<Runnable>( ASYNC_QUEUE_SIZE ),
+                                                            new DaemonThreadFactory( "Gradle Script Executor" ) );
+      executor.allowCoreThreadTimeOut( true );  //don't keep threads around when no one is running scripts
+      return executor;
+   }
+
+   private static ScheduledThreadPoolExecutor createTimeoutExecutor()
+   {
+      ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor( 1, new DaemonThreadFactory( "Gradle Script Timeout" ) );
+      executor.setKeepAliveTime( 60, TimeUnit.SECONDS );   //allowCoreThreadTimeOut needs a keep alive time.
+      executor.allowCoreThreadTimeOut( true );  //don't keep the thread around when no one is timing scripts
+      removeOnCancelIfPossible( executor );
+      return executor;
+   }
+
+   //As of Java 7, a cancelled timeout can be removed from the queue right away. Before that,
+   //it stays there (holding its script) until it's due.
+   private static void removeOnCancelIfPossible( ScheduledThreadPoolExecutor executor )
+   {
+      try
+      {
+         Method method = ScheduledThreadPoolExecutor.class.getMethod( "setRemoveOnCancelPolicy", boolean.class );
+         method.invoke( executor, true );
+      }
+      catch( NoSuchMethodException e )
+      {
+         //Java 6
+      }
+      catch( Exception e )
+      {
+         e.printStackTrace();
+      }
    }
 
    @Nullable public Object execute(@NotNull  final String scriptText,
                                    @Nullable final NameValuePair... bindings) throws ScriptException
    {
-      if ( classLoader == null )
+      if ( classLoader == null || scriptEnginePool == null )
          return null;
 
       ClassLoader oldCtxClassLoader = Thread.currentThread().getContextClassLoader();
+      ScriptEnginePool.PooledEngine pooledEngine = null;
       try
       {
          Thread.currentThread().setContextClassLoader(classLoader);
 
-         ScriptEngineManager sem = new ScriptEngineManager(classLoader);
-         ScriptEngine se = sem.getEngineByName("groovy");
+         pooledEngine = scriptEnginePool.borrowEngine();
+
+         return evaluate(pooledEngine, scriptText, createBindings(pooledEngine.getEngine(), bindings));
+      }
+      finally
+      {
+         if (pooledEngine != null)
+            scriptEnginePool.returnEngine(pooledEngine);
+
+         Thread.currentThread().setContextClassLoader(oldCtxClassLoader);
+      }
+   }
+
+   /**
+      This executes several scripts, returning their results in the same order.
+      Each group of scripts is evaluated in a single engine session: one context
+      class loader swap, one engine and one set of bindings. Note: that means a
+      script that assigns a binding changes it for the scripts after it (in the
+      same session).
+
+      @param  scriptTexts    the scripts to execute
+      @param  inParallel     true to split independent scripts across our script
+                             threads (and this one). Each thread gets its own
+                             bindings holding the same shared values.
+      @param  sharedBindings variables made available to every script
+      @return the result of each script, in the same order as scriptTexts.
+      @throws ScriptException the first failure we come across.
+   */
+   @NotNull public List<Object> executeBatch(@NotNull final List<String> scriptTexts,
+                                             boolean inParallel,
+                                             @Nullable final NameValuePair... sharedBindings) throws ScriptException
+   {
+      final Object[] results = new Object[scriptTexts.size()];
+      if ( classLoader == null || scriptEnginePool == null )
+         return Arrays.asList(results);
+
+      int sessionCount = inParallel ? Math.min(ASYNC_THREAD_COUNT + 1, scriptTexts.size()) : 1;
+      if (sessionCount <= 1)
+      {
+         executeSession(scriptTexts, 0, scriptTexts.size(), results, sharedBindings);
+         return Arrays.asList(results);
+      }
+
+      //We'll run the first session ourselves and hand the rest to our script threads. We run
+      //any that haven't been started by the time we finish ours, so this can never deadlock
+      //waiting for busy script threads (even when called from one of them).
+      int sessionSize = (scriptTexts.size() + sessionCount - 1) / sessionCount;
+      List<FutureTask<Object>> backgroundSessions = new ArrayList<FutureTask<Object>>();
+      for (int start = sessionSize; start < scriptTexts.size(); start += sessionSize)
+      {
+         final int sessionStart = start;
+         final int sessionEnd = Math.min(start + sessionSize, scriptTexts.size());
+         FutureTask<Object> backgroundSession = new FutureTask<Object>(new Callable<Object>()
+         {
+            public Object call() throws Exception
+            {
+               executeSession(scriptTexts, sessionStart, sessionEnd, results, sharedBindings);
+               return null;
+            }
+         });
+
+         backgroundSessions.add(backgroundSession);
+         try
+         {
+            asyncExecutor.execute(backgroundSession);
+         }
+         catch (RejectedExecutionException e)
+         {
+            //the script threads are swamped. We'll run it ourselves below.
+         }
+      }
+
+      boolean isFinished = false;
+      try
+      {
+         executeSession(scriptTexts, 0, Math.min(sessionSize, scriptTexts.size()), results, sharedBindings);
+
+         for (FutureTask<Object> backgroundSession : backgroundSessions)
+            backgroundSession.run();   //this does nothing if a script thread already ran (or is running) it
+
+         for (FutureTask<Object> backgroundSession : backgroundSessions)
+            waitForSession(backgroundSession);
+
+         isFinished = true;
+      }
+      finally
+      {
+         if (!isFinished)   //a script failed (ours or a background one). Nobody will get the other results, so stop working on them.
+         {
+            for (FutureTask<Object> backgroundSession : backgroundSessions)
+               backgroundSession.cancel(true);
+         }
+      }
+
+      return Arrays.asList(results);
+   }
+
+   //this evaluates scripts [start, end) in a single engine session, placing the results in the same positions of results.
+   private void executeSession(List<String> scriptTexts, int start, int end, Object[] results, NameValuePair[] bindings) throws ScriptException
+   {
+      ClassLoader oldCtxClassLoader = Thread.currentThread().getContextClassLoader();
+      ScriptEnginePool.PooledEngine pooledEngine = null;
+      try
+      {
+         Thread.currentThread().setContextClassLoader(classLoader);
 
-         Bindings scriptBindings = se.createBindings();
-         if( bindings != null )
-            for (NameValuePair binding : bindings)
-               scriptBindings.put(binding.getName(), binding.getValue());
+         pooledEngine = scriptEnginePool.borrowEngine();
+         Bindings scriptBindings = createBindings(pooledEngine.getEngine(), bindings);
 
-         return se.eval(scriptText, scriptBindings);
+         for (int index = start; index < end; index++)
+            results[index] = evaluate(pooledEngine, scriptTexts.get(index), scriptBindings);
       }
       finally
       {
+         if (pooledEngine != null)
+            scriptEnginePool.returnEngine(pooledEngine);
+
          Thread.currentThread().setContextClassLoader(oldCtxClassLoader);
       }
    }
 
+   private static void waitForSession(FutureTask<Object> session) throws ScriptException
+   {
+      try
+      {
+         session.get();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         throw new ScriptException(e);
+      }
+      catch (ExecutionException e)
+      {
+         Throwable cause = e.getCause();
+         if (cause instanceof ScriptException)
+            throw (ScriptException) cause;
+         if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+         if (cause instanceof Error)
+            throw (Error) cause;
+
+         throw new ScriptException(e);
+      }
+   }
+
+   private static Bindings createBindings(ScriptEngine se, NameValuePair[] bindings)
+   {
+      Bindings scriptBindings = se.createBindings();
+      if( bindings != null )
+         for (NameValuePair binding : bindings)
+            scriptBindings.put(binding.getName(), binding.getValue());
+
+      return scriptBindings;
+   }
+
+   //a compiled script runs in the engine that compiled it, so we only use the scripts compiled by the engine we've borrowed.
+   private static Object evaluate(ScriptEnginePool.PooledEngine pooledEngine, String scriptText, Bindings scriptBindings) throws ScriptException
+   {
+      ScriptEngine se = pooledEngine.getEngine();
+      if (se instanceof Compilable)
+         return pooledEngine.getCompiledScriptCache().getCompiledScript((Compilable) se, scriptText).eval(scriptBindings);
+
+      return se.eval(scriptText, scriptBindings);
+   }
+
+   /**
+      This executes the script on a background thread.
+
+      @param  scriptText the script to execute
+      @param  bindings   variables made available to the script
+      @return a future for the script's result. Cancel it to interrupt the script.
+      @throws java.util.concurrent.RejectedExecutionException if too many scripts are already waiting to run.
+   */
+   @NotNull public Future<Object> executeAsync(@NotNull final String scriptText,
+                                               @Nullable final NameValuePair... bindings)
+   {
+      return executeAsync(scriptText, 0, TimeUnit.MILLISECONDS, bindings);
+   }
+
+   /**
+      This executes the script on a background thread, cancelling it if it takes
+      longer than the specified timeout.
+
+      @param  scriptText the script to execute
+      @param  timeout    how long the script is given to finish (including time waiting
+                         to run). If it hasn't finished, it's cancelled. 0 for no timeout.
+      @param  unit       the unit of timeout
+      @param  bindings   variables made available to the script
+      @return a future for the script's result. Cancel it to interrupt the script.
+      @throws java.util.concurrent.RejectedExecutionException if too many scripts are already waiting to run.
+   */
+   @NotNull public Future<Object> executeAsync(@NotNull final String scriptText,
+                                               long timeout, @NotNull TimeUnit unit,
+                                               @Nullable final NameValuePair... bindings)
+   {
+      final AsyncScript asyncScript = new AsyncScript( new Callable<Object>()
+      {
+         public Object call() throws Exception
+         {
+            return execute( scriptText, bindings );
+         }
+      } );
+
+      asyncExecutor.execute( asyncScript );
+
+      if( timeout > 0 )
+         asyncScript.setTimeout( timeoutExecutor.schedule( new Runnable()
+         {
+            public void run()
+            {
+               asyncScript.cancel( true );   //does nothing if it already finished
+            }
+         }, timeout, unit ) );
+
+      return asyncScript;
+   }
+
+   /**
+      A script executed by executeAsync. Once it's done (finished or cancelled), it
+      cancels its timeout so the timeout isn't left waiting to cancel a finished script.
+   */
+   private static class AsyncScript extends FutureTask<Object>
+   {
+      private volatile Future<?> timeout;
+
+      private AsyncScript( Callable<Object> callable )
+      {
+         super( callable );
+      }
+
+      private void setTimeout( Future<?> timeout )
+      {
+         this.timeout = timeout;
+         if( isDone() )
+            timeout.cancel( false );   //we finished before the timeout was set, so done didn't see it.
+      }
+
+      @Override protected void done()
+      {
+         Future<?> timeout = this.timeout;
+         if( timeout != null )
+            timeout.cancel( false );
+      }
+   }
+
    public static class NameValuePair
    {
       private String name;
@@ -73,4 +380,24 @@ public class ScriptExecutor
       public String getName() { return name; }
       public Object getValue() { return value; }
    }
-}
\ No newline at end of file
+
+   //this creates named daemon threads so our script threads never keep Idea from exiting.
+   private static class DaemonThreadFactory implements ThreadFactory
+   {
+      private final ThreadFactory defaultThreadFactory = Executors.defaultThreadFactory();
+      private final String name;
+
+      private DaemonThreadFactory( String name )
+      {
+         this.name = name;
+      }
+
+      public Thread newThread( Runnable runnable )
+      {
+         Thread thread = defaultThreadFactory.newThread( runnable );
+         thread.setName( name + " " + thread.getName() );
+         thread.setDaemon( true );
+         return thread;
+      }
+   }
+}
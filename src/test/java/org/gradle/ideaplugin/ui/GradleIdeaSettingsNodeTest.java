@@ -0,0 +1,255 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gradle.ideaplugin.ui;
+
+import org.gradle.openapi.external.ui.SettingsNodeVersion1;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+   Tests looking up and visiting GradleIdeaSettingsNode's children. The lookups use
+   an index, so these check that it stays in step with the children as they're
+   added, removed and renamed.
+*/
+public class GradleIdeaSettingsNodeTest
+{
+   private GradleIdeaSettingsNode rootNode;
+
+   @Before
+   public void setUp()
+   {
+      rootNode = new GradleIdeaSettingsNode( "root", null );
+   }
+
+   @Test
+   public void testLookupWithFewChildren()
+   {
+      checkLookups( 10 );
+   }
+
+   @Test
+   public void testLookupWithManyChildren()
+   {
+      checkLookups( 1000 );
+   }
+
+   @Test
+   public void testLookupWithVeryManyChildren()
+   {
+      checkLookups( 10000 );
+   }
+
+   //this adds the children the way gradle saves a list: remove them all, then add them back one at a time.
+   private void checkLookups( int childCount )
+   {
+      rootNode.addChild( "stale" );
+      rootNode.removeAllChildren();
+
+      for( int index = 0; index < childCount; index++ )
+         rootNode.setValueOfChildAsInt( "child" + index, index );
+
+      List<SettingsNodeVersion1> children = rootNode.getChildNodes();
+      assertEquals( childCount, children.size() );
+      for( int index = 0; index < childCount; index++ )
+      {
+         SettingsNodeVersion1 child = rootNode.getChildNode( "child" + index );
+         assertSame( children.get( index ), child );   //still in the order they were added
+         assertEquals( index, rootNode.getValueOfChildAsInt( "child" + index, -1 ) );
+      }
+
+      assertNull( rootNode.getChildNode( "stale" ) );
+      assertNull( rootNode.getChildNode( "child" + childCount ) );
+      assertEquals( 0, rootNode.getChildNodes( "missing" ).size() );
+   }
+
+   @Test
+   public void testChildrenWithTheSameName()
+   {
+      SettingsNodeVersion1 first = rootNode.addChild( "favorite" );
+      rootNode.addChild( "other" );
+      SettingsNodeVersion1 second = rootNode.addChild( "favorite" );
+
+      assertSame( first, rootNode.getChildNode( "favorite" ) );
+      assertEquals( Arrays.asList( first, second ), rootNode.getChildNodes( "favorite" ) );
+
+      first.removeFromParent();
+      assertSame( second, rootNode.getChildNode( "favorite" ) );
+      assertEquals( Arrays.asList( second ), rootNode.getChildNodes( "favorite" ) );
+      assertEquals( 2, rootNode.getChildNodes().size() );
+   }
+
+   @Test
+   public void testAddChildIfNotPresent()
+   {
+      SettingsNodeVersion1 child = rootNode.addChildIfNotPresent( "child" );
+      assertSame( child, rootNode.addChildIfNotPresent( "child" ) );
+      assertEquals( 1, rootNode.getChildNodes().size() );
+   }
+
+   @Test
+   public void testRenamingAChild()
+   {
+      SettingsNodeVersion1 child = rootNode.addChild( "oldName" );
+      child.setName( "newName" );
+
+      assertNull( rootNode.getChildNode( "oldName" ) );
+      assertSame( child, rootNode.getChildNode( "newName" ) );
+      assertSame( child, rootNode.getNodeAtPath( "newName" ) );
+   }
+
+   /**
+      A child that's been removed isn't put back in the index when it's renamed,
+      and its changes no longer count as changes to its old parent.
+   */
+   @Test
+   public void testRenamingAChildAfterRemovingAllChildren()
+   {
+      SettingsNodeVersion1 child = rootNode.addChild( "oldName" );
+      rootNode.removeAllChildren();
+      rootNode.setCachedElement( null, rootNode.getModificationCount() );   //as if it was just saved
+
+      child.setName( "newName" );
+      child.setValue( "value" );
+
+      assertNull( rootNode.getChildNode( "oldName" ) );
+      assertNull( rootNode.getChildNode( "newName" ) );
+      assertTrue( rootNode.getChildNodes().isEmpty() );
+      assertFalse( rootNode.isModified() );
+   }
+
+   @Test
+   public void testRenamingAChildAfterItsReplaced()
+   {
+      SettingsNodeVersion1 oldChild = rootNode.addChild( "child" );
+      GradleIdeaSettingsNode newChild = new GradleIdeaSettingsNode( "child", rootNode );
+      rootNode.setChildren( Arrays.asList( newChild ) );
+
+      oldChild.setName( "oldChild" );
+      assertNull( rootNode.getChildNode( "oldChild" ) );
+      assertSame( newChild, rootNode.getChildNode( "child" ) );
+
+      newChild.setName( "newChild" );
+      assertSame( newChild, rootNode.getChildNode( "newChild" ) );
+      assertEquals( 1, rootNode.getChildNodes().size() );
+   }
+
+   @Test
+   public void testChildrenWithoutNames()
+   {
+      SettingsNodeVersion1 child = rootNode.addChild( null );
+      assertSame( child, rootNode.getChildNode( null ) );
+
+      child.removeFromParent();
+      assertNull( rootNode.getChildNode( null ) );
+      assertTrue( rootNode.getChildNodes().isEmpty() );
+   }
+
+   @Test
+   public void testSetChildren()
+   {
+      rootNode.addChild( "old" );
+
+      GradleIdeaSettingsNode newChild = new GradleIdeaSettingsNode( "new", rootNode );
+      rootNode.setChildren( Arrays.asList( newChild ) );
+
+      assertNull( rootNode.getChildNode( "old" ) );
+      assertSame( newChild, rootNode.getChildNode( "new" ) );
+      assertEquals( 1, rootNode.getChildNodes().size() );
+   }
+
+   //
+         /**
+            A visitor that remembers what it visited and stops after a certain number.
+         */
+         private static class RecordingVisitor implements GradleIdeaSettingsNode.Visitor
+         {
+            private final List<SettingsNodeVersion1> visitedNodes = new ArrayList<SettingsNodeVersion1>();
+            private final int maximumVisits;
+
+            private RecordingVisitor( int maximumVisits )
+            {
+               this.maximumVisits = maximumVisits;
+            }
+
+            public boolean visit( GradleIdeaSettingsNode node )
+            {
+               visitedNodes.add( node );
+               return visitedNodes.size() < maximumVisits;
+            }
+         }
+
+   @Test
+   public void testVisitChildren()
+   {
+      rootNode.addChild( "first" );
+      rootNode.addChild( "second" );
+      rootNode.addChild( "first" );
+
+      RecordingVisitor visitor = new RecordingVisitor( Integer.MAX_VALUE );
+      assertTrue( rootNode.visitChildren( visitor ) );
+      assertEquals( rootNode.getChildNodes(), visitor.visitedNodes );
+
+      visitor = new RecordingVisitor( Integer.MAX_VALUE );
+      assertTrue( rootNode.visitChildren( "first", visitor ) );
+      assertEquals( rootNode.getChildNodes( "first" ), visitor.visitedNodes );
+
+      visitor = new RecordingVisitor( 2 );
+      assertFalse( rootNode.visitChildren( visitor ) );   //it stopped
+      assertEquals( rootNode.getChildNodes().subList( 0, 2 ), visitor.visitedNodes );
+
+      assertTrue( rootNode.visitChildren( "missing", new RecordingVisitor( 0 ) ) );
+   }
+
+   /**
+      A visitor that changes the children while it's visiting them still visits
+      the children as they were when it started.
+   */
+   @Test
+   public void testVisitChildrenWhileChangingThem()
+   {
+      final SettingsNodeVersion1 first = rootNode.addChild( "first" );
+      final SettingsNodeVersion1 second = rootNode.addChild( "second" );
+
+      final List<SettingsNodeVersion1> visitedNodes = new ArrayList<SettingsNodeVersion1>();
+      rootNode.visitChildren( new GradleIdeaSettingsNode.Visitor()
+      {
+         public boolean visit( GradleIdeaSettingsNode node )
+         {
+            visitedNodes.add( node );
+            if( node == first )
+            {
+               second.removeFromParent();
+               rootNode.addChild( "third" );
+            }
+            return true;
+         }
+      } );
+
+      assertEquals( Arrays.asList( first, second ), visitedNodes );
+      assertEquals( 2, rootNode.getChildNodes().size() );
+      assertNull( rootNode.getChildNode( "second" ) );
+   }
+}
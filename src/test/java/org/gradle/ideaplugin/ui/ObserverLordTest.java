@@ -0,0 +1,278 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gradle.ideaplugin.ui;
+
+import org.junit.Test;
+
+import javax.swing.SwingUtilities;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+   Tests ObserverLord, mostly adding and removing observers from several threads
+   while it's notifying them.
+*/
+public class ObserverLordTest
+{
+   private static final int THREAD_COUNT = 4;
+   private static final int ITERATIONS = 5000;
+
+   //
+         /**
+            An observer that just counts how many times it's been notified.
+         */
+         private static class TestObserver
+         {
+            private final AtomicInteger notificationCount = new AtomicInteger();
+            private volatile Object lastValue;
+
+            public void somethingHappened( Object value )
+            {
+               lastValue = value;
+               notificationCount.incrementAndGet();
+            }
+         }
+
+         private static class SomethingHappenedNotification implements ObserverLord.ObserverNotification<TestObserver>
+         {
+            public void notify( TestObserver observer )
+            {
+               observer.somethingHappened( null );
+            }
+         }
+
+   /**
+      This has some threads notifying while others add and remove observers (some
+      of which remove themselves when they're notified). The observer that's there
+      the whole time must hear about every notification, and nothing can fail.
+   */
+   @Test
+   public void testAddingAndRemovingWhileNotifying() throws Exception
+   {
+      final ObserverLord<TestObserver> observerLord = new ObserverLord<TestObserver>();
+      final TestObserver permanentObserver = new TestObserver();
+      observerLord.addObserver( permanentObserver, false );
+
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      final CountDownLatch startLatch = new CountDownLatch( 1 );
+      List<Thread> threads = new ArrayList<Thread>();
+
+      for( int threadIndex = 0; threadIndex < THREAD_COUNT; threadIndex++ )
+      {
+         threads.add( new TestThread( startLatch, failure )
+         {
+            protected void runTest()
+            {
+               ObserverLord.ObserverNotification<TestObserver> notification = new SomethingHappenedNotification();
+               for( int iteration = 0; iteration < ITERATIONS; iteration++ )
+                  observerLord.notifyObservers( notification );
+            }
+         } );
+
+         threads.add( new TestThread( startLatch, failure )
+         {
+            protected void runTest()
+            {
+               for( int iteration = 0; iteration < ITERATIONS; iteration++ )
+               {
+                  final TestObserver observer = new TestObserver()
+                  {
+                     public void somethingHappened( Object value )
+                     {
+                        super.somethingHappened( value );
+                        observerLord.removeObserver( this );
+                     }
+                  };
+
+                  observerLord.addObserver( observer, false );
+                  observerLord.addObserver( observer, false );   //duplicates are ignored
+                  if( iteration % 2 == 0 )
+                     observerLord.removeObserver( observer );
+               }
+            }
+         } );
+      }
+
+      startAndJoin( threads, startLatch );
+
+      assertNull( failure.get() );
+      assertEquals( THREAD_COUNT * ITERATIONS, permanentObserver.notificationCount.get() );
+
+      //the ones that weren't removed explicitly were either notified (and removed themselves) or are still there.
+      observerLord.removeObserver( permanentObserver );
+      observerLord.notifyObservers( new SomethingHappenedNotification() );
+      assertEquals( "0 regular observers, 0 event queue observers", observerLord.toString() );
+      assertEquals( THREAD_COUNT * ITERATIONS, permanentObserver.notificationCount.get() );
+   }
+
+   /**
+      An observer removed while a notification is being delivered still gets that
+      notification (we go through the observers as they were when it started), but
+      none after it.
+   */
+   @Test
+   public void testRemovingAnotherObserverWhileNotifying()
+   {
+      final ObserverLord<TestObserver> observerLord = new ObserverLord<TestObserver>();
+      final TestObserver secondObserver = new TestObserver();
+      TestObserver firstObserver = new TestObserver()
+      {
+         public void somethingHappened( Object value )
+         {
+            super.somethingHappened( value );
+            observerLord.removeObserver( secondObserver );
+         }
+      };
+
+      observerLord.addObserver( firstObserver, false );
+      observerLord.addObserver( secondObserver, false );
+
+      observerLord.notifyObservers( new SomethingHappenedNotification() );
+      observerLord.notifyObservers( new SomethingHappenedNotification() );
+
+      assertEquals( 2, firstObserver.notificationCount.get() );
+      assertEquals( 1, secondObserver.notificationCount.get() );
+   }
+
+   /**
+      When delivering asynchronously, many notifications with the same coalescing
+      key sent from several threads before the event queue gets to them are
+      delivered once, and it's the last one sent.
+   */
+   @Test
+   public void testAsynchronousNotificationsAreCoalesced() throws Exception
+   {
+      final ObserverLord<TestObserver> observerLord = new ObserverLord<TestObserver>( true );
+      final TestObserver observer = new TestObserver();
+      observerLord.addObserver( observer, true );
+
+      final CountDownLatch blockEventQueue = new CountDownLatch( 1 );
+      SwingUtilities.invokeLater( new Runnable()   //hold up the event queue so everything below is still pending.
+      {
+         public void run()
+         {
+            try
+            {
+               blockEventQueue.await();
+            }
+            catch( InterruptedException e )
+            {
+               Thread.currentThread().interrupt();
+            }
+         }
+      } );
+
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      final CountDownLatch startLatch = new CountDownLatch( 1 );
+      List<Thread> threads = new ArrayList<Thread>();
+      for( int threadIndex = 0; threadIndex < THREAD_COUNT; threadIndex++ )
+      {
+         threads.add( new TestThread( startLatch, failure )
+         {
+            protected void runTest()
+            {
+               for( int iteration = 0; iteration < ITERATIONS; iteration++ )
+                  observerLord.notifyObservers( new ValueChangedNotification( "not the last" ) );
+            }
+         } );
+      }
+
+      startAndJoin( threads, startLatch );
+      observerLord.notifyObservers( new ValueChangedNotification( "last" ) );
+
+      blockEventQueue.countDown();
+      SwingUtilities.invokeAndWait( new Runnable()   //the delivery was posted before this, so it's done when this runs.
+      {
+         public void run()
+         {
+         }
+      } );
+
+      assertNull( failure.get() );
+      assertEquals( 1, observer.notificationCount.get() );
+      assertEquals( "last", observer.lastValue );
+   }
+
+   private static void startAndJoin( List<Thread> threads, CountDownLatch startLatch ) throws InterruptedException
+   {
+      for( int index = 0; index < threads.size(); index++ )
+         threads.get( index ).start();
+
+      startLatch.countDown();
+
+      for( int index = 0; index < threads.size(); index++ )
+         threads.get( index ).join();
+   }
+
+   //
+         private static class ValueChangedNotification implements ObserverLord.CoalescingNotification<TestObserver>
+         {
+            private final Object value;
+
+            private ValueChangedNotification( Object value )
+            {
+               this.value = value;
+            }
+
+            public void notify( TestObserver observer )
+            {
+               observer.somethingHappened( value );
+            }
+
+            public Object getCoalescingKey()
+            {
+               return "valueChanged";
+            }
+         }
+
+   //
+         /**
+            A thread that waits for the others to be ready, then runs the test. The
+            first thing to fail is saved so the test can check it.
+         */
+         private static abstract class TestThread extends Thread
+         {
+            private final CountDownLatch startLatch;
+            private final AtomicReference<Throwable> failure;
+
+            protected TestThread( CountDownLatch startLatch, AtomicReference<Throwable> failure )
+            {
+               this.startLatch = startLatch;
+               this.failure = failure;
+            }
+
+            public void run()
+            {
+               try
+               {
+                  startLatch.await();
+                  runTest();
+               }
+               catch( Throwable e )
+               {
+                  failure.compareAndSet( null, e );
+               }
+            }
+
+            protected abstract void runTest();
+         }
+}
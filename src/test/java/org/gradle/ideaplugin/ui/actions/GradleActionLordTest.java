@@ -0,0 +1,228 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gradle.ideaplugin.ui.actions;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.project.Project;
+import org.gradle.ideaplugin.ui.GradleUIApplicationComponent;
+import org.gradle.openapi.external.foundation.favorites.FavoriteTaskVersion1;
+import org.gradle.openapi.external.foundation.favorites.FavoritesEditorVersion1;
+import org.gradle.openapi.external.ui.DualPaneUIVersion1;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+   Tests that GradleActionLord shares actions between projects. An action is
+   registered with Idea when the first project uses it and unregistered when
+   the last one is unloaded. Idea's action manager is replaced by a map, and
+   projects and gradle UIs by proxies that only answer what the lord asks.
+*/
+public class GradleActionLordTest
+{
+   private static final String BUILD_ACTION = FavoriteTaskActionWrapper.getName( "build" );
+   private static final String TEST_ACTION = FavoriteTaskActionWrapper.getName( "test" );
+
+   private TestActionLord actionLord;
+
+   //
+         /**
+            An action lord that registers its actions in a map rather than with Idea.
+            It counts how many times each one was registered.
+         */
+         private static class TestActionLord extends GradleActionLord
+         {
+            private final Map<String, AnAction> registeredActions = new HashMap<String, AnAction>();
+            private final Map<String, Integer> registrationCounts = new HashMap<String, Integer>();
+
+            private TestActionLord()
+            {
+               super( new GradleUIApplicationComponent() );
+            }
+
+            /*package*/ void registerAction( String name, AnAction action )
+            {
+               registeredActions.put( name, action );
+               Integer count = registrationCounts.get( name );
+               registrationCounts.put( name, count == null ? 1 : count + 1 );
+            }
+
+            /*package*/ void unregisterAction( String name )
+            {
+               registeredActions.remove( name );
+            }
+
+            private int getRegistrationCount( String name )
+            {
+               Integer count = registrationCounts.get( name );
+               return count == null ? 0 : count;
+            }
+         }
+
+   @Before
+   public void setUp()
+   {
+      actionLord = new TestActionLord();
+   }
+
+   @Test
+   public void testActionSharedByTwoProjects()
+   {
+      Project firstProject = createProject( "first" );
+      Project secondProject = createProject( "second" );
+
+      actionLord.gradleUILoaded( createGradleUI( "build", "test" ), firstProject );
+      actionLord.gradleUILoaded( createGradleUI( "build" ), secondProject );
+
+      assertTrue( actionLord.registeredActions.containsKey( BUILD_ACTION ) );
+      assertTrue( actionLord.registeredActions.containsKey( TEST_ACTION ) );
+      assertTrue( actionLord.registeredActions.containsKey( ReExecuteLastCommandActionWrapper.NAME ) );
+      assertEquals( 1, actionLord.getRegistrationCount( BUILD_ACTION ) );   //the second project just added a reference
+
+      actionLord.gradleUIUnloaded( firstProject );
+      assertEquals( 2, actionLord.registeredActions.size() );
+      assertTrue( actionLord.registeredActions.containsKey( BUILD_ACTION ) );   //the second project still uses it
+      assertTrue( actionLord.registeredActions.containsKey( ReExecuteLastCommandActionWrapper.NAME ) );
+
+      actionLord.gradleUIUnloaded( secondProject );
+      assertTrue( actionLord.registeredActions.isEmpty() );
+
+      //the counts went back to zero, so loading a project again registers its actions again.
+      actionLord.gradleUILoaded( createGradleUI( "build" ), firstProject );
+      assertTrue( actionLord.registeredActions.containsKey( BUILD_ACTION ) );
+      assertEquals( 2, actionLord.getRegistrationCount( BUILD_ACTION ) );
+
+      actionLord.gradleUIUnloaded( firstProject );
+      assertTrue( actionLord.registeredActions.isEmpty() );
+   }
+
+   /**
+      Being told about the same UI twice (such as by a replay when an observer is
+      added) doesn't add another reference. Otherwise unloading would never get
+      the count back to zero.
+   */
+   @Test
+   public void testLoadingTheSameUITwice()
+   {
+      Project project = createProject( "project" );
+      DualPaneUIVersion1 gradleUI = createGradleUI( "build" );
+
+      actionLord.gradleUILoaded( gradleUI, project );
+      actionLord.gradleUILoaded( gradleUI, project );
+      actionLord.gradleUIUnloaded( project );
+
+      assertTrue( actionLord.registeredActions.isEmpty() );
+   }
+
+   @Test
+   public void testUnloadingAProjectThatWasNeverLoaded()
+   {
+      Project project = createProject( "project" );
+      actionLord.gradleUILoaded( createGradleUI( "build" ), project );
+
+      actionLord.gradleUIUnloaded( createProject( "other" ) );
+      assertTrue( actionLord.registeredActions.containsKey( BUILD_ACTION ) );
+
+      actionLord.gradleUIUnloaded( project );
+      assertTrue( actionLord.registeredActions.isEmpty() );
+   }
+
+   private static Project createProject( final String name )
+   {
+      return createProxy( Project.class, new Answerer()
+      {
+         public Object answer( String methodName )
+         {
+            return methodName.equals( "getName" ) ? name : null;
+         }
+      } );
+   }
+
+   //this creates a gradle UI whose favorites are the specified display names.
+   private static DualPaneUIVersion1 createGradleUI( String ... favoriteNames )
+   {
+      final List<FavoriteTaskVersion1> favorites = new ArrayList<FavoriteTaskVersion1>();
+      for( int index = 0; index < favoriteNames.length; index++ )
+         favorites.add( createFavorite( favoriteNames[ index ] ) );
+
+      final FavoritesEditorVersion1 favoritesEditor = createProxy( FavoritesEditorVersion1.class, new Answerer()
+      {
+         public Object answer( String methodName )
+         {
+            return methodName.equals( "getFavoriteTasks" ) ? favorites : null;
+         }
+      } );
+
+      return createProxy( DualPaneUIVersion1.class, new Answerer()
+      {
+         public Object answer( String methodName )
+         {
+            return methodName.equals( "getFavoritesEditor" ) ? favoritesEditor : null;   //everything else (such as adding an output observer) is ignored.
+         }
+      } );
+   }
+
+   private static FavoriteTaskVersion1 createFavorite( final String displayName )
+   {
+      return createProxy( FavoriteTaskVersion1.class, new Answerer()
+      {
+         public Object answer( String methodName )
+         {
+            return methodName.equals( "getDisplayName" ) ? displayName : null;
+         }
+      } );
+   }
+
+   //
+         /**
+            Answers the calls made to a proxy (other than equals, hashCode and toString,
+            which are by identity). Only methods that return objects can be answered.
+         */
+         private interface Answerer
+         {
+            public Object answer( String methodName );
+         }
+
+   private static <T> T createProxy( Class<T> proxyInterface, final Answerer answerer )
+   {
+      Object proxy = Proxy.newProxyInstance( GradleActionLordTest.class.getClassLoader(), new Class[] { proxyInterface }, new InvocationHandler()
+      {
+         public Object invoke( Object proxy, Method method, Object[] arguments )
+         {
+            if( method.getName().equals( "equals" ) )
+               return proxy == arguments[ 0 ];
+            if( method.getName().equals( "hashCode" ) )
+               return System.identityHashCode( proxy );
+            if( method.getName().equals( "toString" ) )
+               return "proxy " + System.identityHashCode( proxy );
+
+            return answerer.answer( method.getName() );
+         }
+      } );
+
+      return proxyInterface.cast( proxy );
+   }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gradle.ideaplugin.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+   Tests ChildFirstClassLoader with a jar made from some of this test's own classes.
+   Since it loads its own classes first, the ones it loads from the jar are
+   different classes than the ones this test was loaded with.
+*/
+public class ChildFirstClassLoaderTest
+{
+   private static final Class[] JAR_CLASSES = new Class[] { FirstLoadable.class, SecondLoadable.class, ThirdLoadable.class };
+   private static final int THREAD_COUNT = 8;
+   private static final int ROUNDS = 200;
+
+   private File jar;
+
+   //
+         public static class FirstLoadable { }
+         public static class SecondLoadable extends FirstLoadable { }
+         public static class ThirdLoadable extends SecondLoadable { }
+
+   @Before
+   public void setUp() throws IOException
+   {
+      jar = File.createTempFile( "childFirstClassLoaderTest", ".jar" );
+      JarOutputStream output = new JarOutputStream( new FileOutputStream( jar ) );
+      try
+      {
+         for( int index = 0; index < JAR_CLASSES.length; index++ )
+         {
+            String entryName = GradleJarIndex.getEntryNameOfClass( JAR_CLASSES[ index ].getName() );
+            output.putNextEntry( new JarEntry( entryName ) );
+            copy( getClass().getClassLoader().getResourceAsStream( entryName ), output );
+            output.closeEntry();
+         }
+      }
+      finally
+      {
+         output.close();
+      }
+   }
+
+   @After
+   public void tearDown()
+   {
+      if( jar != null )
+         jar.delete();
+   }
+
+   private static void copy( InputStream input, JarOutputStream output ) throws IOException
+   {
+      try
+      {
+         byte[] buffer = new byte[ 8192 ];
+         int bytesRead;
+         while( ( bytesRead = input.read( buffer ) ) != -1 )
+            output.write( buffer, 0, bytesRead );
+      }
+      finally
+      {
+         input.close();
+      }
+   }
+
+   private ChildFirstClassLoader createClassLoader()
+   {
+      return createClassLoader( GradleJarIndex.load( Collections.singletonList( jar ), null ) );
+   }
+
+   private ChildFirstClassLoader createClassLoader( GradleJarIndex jarIndex )
+   {
+      try
+      {
+         return new ChildFirstClassLoader( new URL[] { jar.toURI().toURL() }, getClass().getClassLoader(), jarIndex );
+      }
+      catch( IOException e )
+      {
+         throw new RuntimeException( e );
+      }
+   }
+
+   @Test
+   public void testLoadsClassesInTheJarItself() throws Exception
+   {
+      ChildFirstClassLoader classLoader = createClassLoader();
+      try
+      {
+         Class<?> loadedClass = classLoader.loadClass( ThirdLoadable.class.getName() );
+         assertSame( classLoader, loadedClass.getClassLoader() );
+         assertSame( classLoader, loadedClass.getSuperclass().getClassLoader() );
+         assertSame( loadedClass, classLoader.loadClass( ThirdLoadable.class.getName() ) );
+         assertNotNull( loadedClass.getPackage() );
+      }
+      finally
+      {
+         classLoader.closeJarFiles();
+      }
+   }
+
+   @Test
+   public void testDelegatesClassesNotInTheJar() throws Exception
+   {
+      ChildFirstClassLoader classLoader = createClassLoader();
+      try
+      {
+         assertSame( String.class, classLoader.loadClass( String.class.getName() ) );
+         assertSame( ChildFirstClassLoaderTest.class, classLoader.loadClass( ChildFirstClassLoaderTest.class.getName() ) );
+      }
+      finally
+      {
+         classLoader.closeJarFiles();
+      }
+   }
+
+   @Test
+   public void testFindsResourcesInTheJar() throws Exception
+   {
+      ChildFirstClassLoader classLoader = createClassLoader();
+      try
+      {
+         String entryName = GradleJarIndex.getEntryNameOfClass( FirstLoadable.class.getName() );
+         URL resource = classLoader.findResource( entryName );
+         assertNotNull( resource );
+         assertTrue( resource.toString().startsWith( "jar:" + jar.toURI().toURL() ) );
+         assertEquals( 1, Collections.list( classLoader.findResources( entryName ) ).size() );
+         assertNull( classLoader.findResource( "not/in/the/jar.txt" ) );
+      }
+      finally
+      {
+         classLoader.closeJarFiles();
+      }
+   }
+
+   /**
+      Several threads load the same classes from a new class loader at the same time,
+      over and over. They must all get the same classes and none of them can fail
+      (such as by defining a class twice).
+   */
+   @Test
+   public void testConcurrentLoading() throws Exception
+   {
+      final GradleJarIndex jarIndex = GradleJarIndex.load( Collections.singletonList( jar ), null );
+      final AtomicReference<ChildFirstClassLoader> classLoader = new AtomicReference<ChildFirstClassLoader>();
+      final Class[][] loadedClasses = new Class[ THREAD_COUNT ][ JAR_CLASSES.length ];
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+      final CyclicBarrier barrier = new CyclicBarrier( THREAD_COUNT, new Runnable()
+      {
+         public void run()   //this runs between the rounds (when every thread is waiting)
+         {
+            checkSameClasses( loadedClasses, failure );
+            closeJarFiles( classLoader.get() );
+            classLoader.set( createClassLoader( jarIndex ) );
+         }
+      } );
+
+      List<Thread> threads = new ArrayList<Thread>();
+      for( int threadIndex = 0; threadIndex < THREAD_COUNT; threadIndex++ )
+      {
+         final int thisThreadIndex = threadIndex;
+         threads.add( new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  barrier.await();
+                  for( int round = 0; round < ROUNDS; round++ )
+                  {
+                     //load them in a different order on each thread so they collide on different classes.
+                     for( int index = 0; index < JAR_CLASSES.length; index++ )
+                     {
+                        int classIndex = ( index + thisThreadIndex ) % JAR_CLASSES.length;
+                        loadedClasses[ thisThreadIndex ][ classIndex ] = classLoader.get().loadClass( JAR_CLASSES[ classIndex ].getName() );
+                     }
+
+                     barrier.await();
+                  }
+               }
+               catch( Throwable e )
+               {
+                  failure.compareAndSet( null, e );
+                  barrier.reset();   //so the other threads don't wait forever
+               }
+            }
+         } );
+      }
+
+      for( int index = 0; index < threads.size(); index++ )
+         threads.get( index ).start();
+
+      for( int index = 0; index < threads.size(); index++ )
+         threads.get( index ).join();
+
+      closeJarFiles( classLoader.get() );
+      assertNull( failure.get() );
+   }
+
+   private static void checkSameClasses( Class[][] loadedClasses, AtomicReference<Throwable> failure )
+   {
+      for( int threadIndex = 1; threadIndex < loadedClasses.length; threadIndex++ )
+      {
+         for( int classIndex = 0; classIndex < loadedClasses[ threadIndex ].length; classIndex++ )
+         {
+            if( loadedClasses[ threadIndex ][ classIndex ] != loadedClasses[ 0 ][ classIndex ] )
+               failure.compareAndSet( null, new AssertionError( "Threads loaded different classes for " + JAR_CLASSES[ classIndex ].getName() ) );
+         }
+      }
+   }
+
+   private static void closeJarFiles( ChildFirstClassLoader classLoader )
+   {
+      if( classLoader != null )
+         classLoader.closeJarFiles();
+   }
+}